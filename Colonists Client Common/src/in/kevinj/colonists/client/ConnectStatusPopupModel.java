@@ -2,8 +2,10 @@ package in.kevinj.colonists.client;
 
 import in.kevinj.colonists.Constants;
 import in.kevinj.colonists.NetworkPlayer;
+import in.kevinj.colonists.NetworkThread;
 import in.kevinj.colonists.NioSession;
 import in.kevinj.colonists.Session;
+import in.kevinj.colonists.TimerWheel;
 
 public abstract class ConnectStatusPopupModel {
 	public final Model parent;
@@ -13,6 +15,8 @@ public abstract class ConnectStatusPopupModel {
 
 	protected NioSession.IncompleteNioSession state;
 	protected Session session;
+	private TimerWheel.Timeout handshakeTimer;
+	private volatile boolean handshakeTimedOut;
 
 	protected ConnectStatusPopupModel(Model model) {
 		this.parent = model;
@@ -30,10 +34,18 @@ public abstract class ConnectStatusPopupModel {
 
 	public NetworkPlayer update(float tDelta) {
 		if (session != null) {
+			if (handshakeTimedOut) {
+				session.close();
+				failed("Timed out after " + Constants.SOCKET_TIMEOUT + " milliseconds");
+				session = null;
+				return null;
+			}
 			Session.PacketReader reader = session.read();
 			if (reader == null)
 				return null;
 
+			NetworkThread.instance.cancel(handshakeTimer);
+
 			NetworkPlayer op;
 			try {
 				if (reader.getInt() != Constants.FILE_SIGNATURE) {
@@ -42,12 +54,16 @@ public abstract class ConnectStatusPopupModel {
 					session = null;
 					return null;
 				}
-				if (reader.getShort() != Constants.VERSION) {
+				short version = reader.getShort();
+				if (version < Constants.MIN_COMPATIBLE_VERSION) {
 					session.close();
-					failed("Peer is on a different version");
+					failed("Peer is on an older version");
 					session = null;
 					return null;
 				}
+				//speak the older of the two versions
+				if (Math.min(version, Constants.VERSION) >= Constants.VARINT_FRAMING_VERSION)
+					session.enableVarintFraming(Constants.MAX_PACKET_LENGTH);
 				op = new NetworkPlayer(reader.getLengthPrefixedAsciiString(), session);
 			} finally {
 				reader.close();
@@ -77,8 +93,16 @@ public abstract class ConnectStatusPopupModel {
 			writer.putLengthPrefixedAsciiString("monsters/water1.json");
 			writer.putLengthPrefixedAsciiString("monsters/rock1.json");
 			writer.close();
+			ses.flush();
 
 			session = ses;
+			handshakeTimedOut = false;
+			handshakeTimer = NetworkThread.instance.schedule(new Runnable() {
+				@Override
+				public void run() {
+					handshakeTimedOut = true;
+				}
+			}, Constants.SOCKET_TIMEOUT);
 		}
 		return null;
 	}
@@ -86,5 +110,10 @@ public abstract class ConnectStatusPopupModel {
 	public void swappedOut() {
 		if (state != null)
 			state.cancel();
+		if (session != null) {
+			NetworkThread.instance.cancel(handshakeTimer);
+			session.close();
+			session = null;
+		}
 	}
 }
@@ -1,5 +1,7 @@
 package in.kevinj.colonists.client;
 
+import in.kevinj.colonists.NetworkThread;
+
 import com.badlogic.gdx.Application;
 import com.badlogic.gdx.ApplicationListener;
 import com.badlogic.gdx.Gdx;
@@ -28,6 +30,15 @@ public class Game implements ApplicationListener {
 		Gdx.input.setCatchBackKey(true);
 		Gdx.input.setCatchMenuKey(true);
 
+		// render as soon as the network thread posts something instead of
+		// polling sockets every frame
+		NetworkThread.instance.setNotifier(new Runnable() {
+			@Override
+			public void run() {
+				Gdx.graphics.requestRendering();
+			}
+		});
+
 		model.onStart();
 		model.startLoadingResources(true);
 		batch = new SpriteBatch();
@@ -11,7 +11,7 @@ import com.badlogic.gdx.math.Vector3;
 //hexagons are interesting to work with
 //TODO: detect dragging, implement pinch/scrollwheel zooming
 public class MapInteraction {
-	private static class GraphicalCommitMove extends PlayerAction.CommitMove<WorldModel, GraphicalEntity.NegativeSpace> {
+	/* package-private */ static class GraphicalCommitMove extends PlayerAction.CommitMove<WorldModel, GraphicalEntity.NegativeSpace> {
 		public GraphicalCommitMove(WorldModel m, GraphicalEntity.Type type, Coordinate coord) {
 			super(m, type, coord);
 		}
@@ -9,14 +9,15 @@ import in.kevinj.colonists.Player;
 import in.kevinj.colonists.client.Model;
 import in.kevinj.colonists.client.ScaleDisplay;
 import in.kevinj.colonists.world.Coordinate;
+import in.kevinj.colonists.world.CoordinateSet;
+import in.kevinj.colonists.world.EntityGrid;
 import in.kevinj.colonists.world.GameMap;
 import in.kevinj.colonists.world.MapTile;
+import in.kevinj.colonists.world.PlayerActionCodec;
+import in.kevinj.colonists.world.ProductionIndex;
+import in.kevinj.colonists.world.ZobristHash;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.Input.Buttons;
@@ -95,13 +96,16 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 	public int tileWidth, tileHeight, settlementRadius;
 	public int mapBoundsColumns, mapBoundsRows;
 	public final MapTile[][] resources;
+	private final long layoutHash;
 	public final GraphicalEntity.PositiveSpace highwayman;
 	public Coordinate.PositiveSpace highwaymanCandidate;
 	public Coordinate.NegativeSpace villageCandidate, metroCandidate, roadCandidate;
-	private final Map<Coordinate.NegativeSpace, GraphicalEntity.NegativeSpace> grid;
+	private final EntityGrid<GraphicalEntity.NegativeSpace> grid;
+	private final ProductionIndex production;
+	private final GameMap.Helper.LongestRoadTracker longestRoads;
 
 	private final int[] initializeGridStages;
-	private final Set<Coordinate.NegativeSpace> availableVertices;
+	private final CoordinateSet availableVertices;
 
 	private final Player[] players;
 	public final int self;
@@ -119,18 +123,21 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 		resources = new MapTile[mapBoundsRows][mapBoundsColumns];
 		highwayman = new GraphicalEntity.Highwayman(this);
 		GameMap.Helper.initializeMap(resources, highwayman);
+		layoutHash = ZobristHash.layout(resources);
 
-		grid = new HashMap<Coordinate.NegativeSpace, GraphicalEntity.NegativeSpace>();
-		availableVertices = Coordinate.NegativeSpace.allVertices();
+		grid = new EntityGrid<GraphicalEntity.NegativeSpace>();
+		production = new ProductionIndex(this);
+		longestRoads = new GameMap.Helper.LongestRoadTracker(grid);
+		availableVertices = new CoordinateSet(Coordinate.NegativeSpace.allVertices());
 
 		players = new Player[NUM_PLAYERS];
 		initializeGridStages = new int[NUM_PLAYERS];
 		self = 0;
 		for (int i = 0; i < NUM_PLAYERS; i++)
 			//if (i == self)
-				players[i] = new LocalPlayer(null, new HashSet<Coordinate.NegativeSpace>());
+				players[i] = new LocalPlayer(null, new CoordinateSet());
 			//else
-				//players[i] = new PendingPlayer(null, new HashSet<Coordinate.NegativeSpace>());
+				//players[i] = new PendingPlayer(null, new CoordinateSet());
 		ensureInitialized(0);
 		//house tests
 //		addToGrid(Coordinate.NegativeSpace.valueOf(1, 0, 3, 0), new GraphicalEntity.Metro(this, currentPlayerTurn));
@@ -174,6 +181,7 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 
 	public void initRemote(NetworkPlayer op, boolean swapTurnsAtEnd) {
 		init();
+		op.setCodec(new PlayerActionCodec(this, new MapInteraction.GraphicalCommitMove(this, null, null)));
 		setPlayer(-1, op);
 	}
 
@@ -186,7 +194,12 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 
 	@Override
 	public Map<Coordinate.NegativeSpace, GraphicalEntity.NegativeSpace> getGrid() {
-		return Collections.unmodifiableMap(grid);
+		return grid.asMap();
+	}
+
+	@Override
+	public EntityGrid<GraphicalEntity.NegativeSpace> getEntityGrid() {
+		return grid;
 	}
 
 	@Override
@@ -195,6 +208,8 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 		if (old != null)
 			old.setPosition(null);
 		ent.setPosition(loc);
+		production.update(loc, old, ent);
+		longestRoads.update(loc);
 		Integer deltaTurn;
 		if ((deltaTurn = GameMap.Helper.initialAddToGrid(this, loc, ent.getPlayer(), initializeGridStages[ent.getPlayer()], availableVertices)) != null) {
 			initializeGridStages[ent.getPlayer()]++;
@@ -213,12 +228,39 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 			return null; //no changes made
 		else
 			old.setPosition(null);
+		production.update(loc, old, null);
+		longestRoads.update(loc);
 		GameMap.Helper.incrementalUpdateAfterRemoveFromGrid(this, loc, old);
 		return old;
 	}
 
+	@Override
+	public GraphicalEntity.NegativeSpace restoreGrid(Coordinate.NegativeSpace loc, GraphicalEntity.NegativeSpace old) {
+		GraphicalEntity.NegativeSpace ent = old == null ? grid.remove(loc) : grid.put(loc, old);
+		if (ent != null)
+			ent.setPosition(null);
+		if (old != null)
+			old.setPosition(loc);
+		production.update(loc, ent, old);
+		longestRoads.update(loc);
+		return ent;
+	}
+
+	/**
+	 * @return who gets what on each roll.
+	 */
+	public ProductionIndex getProductionIndex() {
+		return production;
+	}
+
+	public GameMap.Helper.LongestRoadTracker getLongestRoads() {
+		return longestRoads;
+	}
+
+	@Override
 	public MapTile getTile(Coordinate.PositiveSpace coord) {
 		if (coord == null) return null;
+		if (coord.y < 0 || coord.y >= mapBoundsRows || coord.x < 0 || coord.x >= mapBoundsColumns) return null;
 		return resources[coord.y][coord.x];
 	}
 
@@ -239,6 +281,11 @@ public class WorldModel extends ScaleDisplay implements GameMap<GraphicalEntity.
 		return currentPlayerTurn;
 	}
 
+	@Override
+	public long getHash() {
+		return grid.getHash() ^ layoutHash ^ ZobristHash.turn(currentPlayerTurn) ^ ZobristHash.highwayman(highwayman.getPosition());
+	}
+
 	@Override
 	public GraphicalEntity.PositiveSpace getHighwayman() {
 		return highwayman;
@@ -294,6 +294,8 @@ public class WorldScene implements Scene {
 		}
 		model.controller.hidden = (subScene != null);
 		model.controller.update(tDelta);
+		for (int i = 0; i < WorldModel.NUM_PLAYERS; i++)
+			model.getPlayer(i).flush(tDelta);
 		PlayerAction move;
 		for (int i = 0; i < WorldModel.NUM_PLAYERS; i++)
 			while ((move = model.getPlayer(i).getNextMove()) != null)
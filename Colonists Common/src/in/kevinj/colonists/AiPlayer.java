@@ -1,13 +1,86 @@
 package in.kevinj.colonists;
 
-import in.kevinj.colonists.world.Coordinate;
+import in.kevinj.colonists.world.CoordinateSet;
+import in.kevinj.colonists.world.GameMap;
+import in.kevinj.colonists.world.MonteCarloSearch;
 import in.kevinj.colonists.world.PlayerAction;
+import in.kevinj.colonists.world.SimulationMap;
 
-import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Thinks about its moves on another thread, so that the game loop never waits
+ * on it. When it is the AI's turn, getNextMove() copies the map and returns
+ * right away. The search then runs for the think time, after which the best
+ * move found is put in the queue for the game loop to pick up.
+ */
 public class AiPlayer extends Player {
+	private static final int DEFAULT_THINK_MILLIS = 1000;
+
+	/**
+	 * Shared by every AI. An AI only thinks on its own turn and never twice at
+	 * once, so the AIs of a game take turns on one thread between them, and
+	 * games that are played side by side get up to a thread per core.
+	 */
+	private static final ThreadPoolExecutor WORKERS;
+
+	static {
+		int cores = Runtime.getRuntime().availableProcessors();
+		WORKERS = new ThreadPoolExecutor(cores, cores, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ai");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		//don't keep threads around while no AI is playing
+		WORKERS.allowCoreThreadTimeOut(true);
+	}
+
+	private final MonteCarloSearch search;
+	private GameMap<?> model;
+	private int self;
+	private PlayerAction.CommitMove<?, ?> commit;
+	private volatile int thinkMillis;
+	private volatile boolean thinking;
+
 	public AiPlayer(String name) {
-		super(name, new HashSet<Coordinate.NegativeSpace>());
+		this(name, null);
+	}
+
+	/**
+	 * @param props null for an AI without any particular style.
+	 */
+	public AiPlayer(String name, TrainerProperties props) {
+		super(name, new CoordinateSet());
+		search = new MonteCarloSearch(props, new Random());
+		thinkMillis = DEFAULT_THINK_MILLIS;
+	}
+
+	/**
+	 * Lets the AI play as the given player.
+	 * @param commit reused for every move the AI commits.
+	 */
+	public void setModel(GameMap<?> model, int self, PlayerAction.CommitMove<?, ?> commit) {
+		this.model = model;
+		this.self = self;
+		this.commit = commit;
+	}
+
+	/**
+	 * @param thinkMillis how long to search for each move.
+	 */
+	public void setThinkTime(int thinkMillis) {
+		this.thinkMillis = thinkMillis;
+	}
+
+	public boolean isThinking() {
+		return thinking;
 	}
 
 	@Override
@@ -16,10 +89,31 @@ public class AiPlayer extends Player {
 		if (move != null)
 			return move;
 
-		// TODO: actual intelligence
-		/*List<CeldroidBattleMove> moves = party.get(0).monsterType.moves;
-		atkAnimation.reset(model.parent.assets.get(moves.get((int) (Math.random() * moves.size())).file, CeldroidBattleMove.class));
-		return atkAnimation;*/
+		if (thinking || model == null || model.getCurrentPlayerTurn() != self)
+			return null;
+
+		final SimulationMap root = new SimulationMap(model);
+		if (!root.hasLegalMoves(self))
+			//turns only have to be ended once everyone is set up, and otherwise
+			//move on by themselves
+			return root.isSetUp() ? new PlayerAction.EndTurn(model) : null;
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+		thinking = true;
+		WORKERS.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					queue.add(MonteCarloSearch.toAction(model, search.searchUntil(root, deadline), commit));
+					if (root.isSetUp())
+						queue.add(new PlayerAction.EndTurn(model));
+				} catch (Throwable e) {
+					e.printStackTrace();
+				} finally {
+					thinking = false;
+				}
+			}
+		});
 		return null;
 	}
 
@@ -0,0 +1,78 @@
+package in.kevinj.colonists;
+
+import in.kevinj.colonists.world.Entity;
+import in.kevinj.colonists.world.GameMap;
+import in.kevinj.colonists.world.PlayerAction;
+import in.kevinj.colonists.world.SimulationMap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of how long AiPlayers hold up the game loop while they think.
+ */
+public class AiPlayerBenchmark {
+	private static class SimulationCommitMove extends PlayerAction.CommitMove<SimulationMap, SimulationMap.Piece> {
+		public SimulationCommitMove(SimulationMap m) {
+			super(m, null, null);
+		}
+
+		@Override
+		protected SimulationMap.Piece createMetro(SimulationMap model, int player) {
+			return SimulationMap.getPiece(player, Entity.Type.METRO);
+		}
+
+		@Override
+		protected SimulationMap.Piece createVillage(SimulationMap model, int player) {
+			return SimulationMap.getPiece(player, Entity.Type.VILLAGE);
+		}
+
+		@Override
+		protected SimulationMap.Piece createRoad(SimulationMap model, int player) {
+			return SimulationMap.getPiece(player, Entity.Type.ROAD);
+		}
+	}
+
+	/**
+	 * Usage: AiPlayerBenchmark [seconds] [think millis] [seed]
+	 *
+	 * Has three AIs play each other on a headless map, polled by an update
+	 * loop that runs 60 times a second like the game loop does, and prints
+	 * how long the updates took, i.e. how long the AIs held up the game loop.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int thinkMillis = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		Random r = new Random(args.length > 2 ? Long.parseLong(args[2]) : 42);
+		int framesPerSecond = 60;
+		long frameNanos = 1000000000L / framesPerSecond;
+
+		SimulationMap model = SimulationMap.newGame(r);
+		AiPlayer[] ais = new AiPlayer[GameMap.NUM_PLAYERS];
+		for (int i = 0; i < ais.length; i++) {
+			ais[i] = new AiPlayer("ai" + i);
+			ais[i].setModel(model, i, new SimulationCommitMove(model));
+			ais[i].setThinkTime(thinkMillis);
+		}
+
+		long[] frames = new long[seconds * framesPerSecond];
+		int count = 0, actions = 0;
+		while (count < frames.length && !model.isGameOver()) {
+			long start = System.nanoTime();
+			for (int i = 0; i < ais.length; i++) {
+				PlayerAction move;
+				while ((move = ais[i].getNextMove()) != null) {
+					move.update(0);
+					actions++;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			frames[count++] = elapsed;
+			if (elapsed < frameNanos)
+				Thread.sleep((frameNanos - elapsed) / 1000000, (int) ((frameNanos - elapsed) % 1000000));
+		}
+		Arrays.sort(frames, 0, count);
+		System.out.println(String.format("%d frames, %d actions, update p50 %.3f ms, p99 %.3f ms, max %.3f ms", count, actions,
+				frames[count / 2] / 1e6, frames[count * 99 / 100] / 1e6, frames[count - 1] / 1e6));
+	}
+}
@@ -0,0 +1,78 @@
+package in.kevinj.colonists;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers are expensive to allocate and are only freed when the GC gets
+ * around to them, so sessions borrow them from here only for as long as they
+ * have bytes to hold. Capacities are rounded up to a power of two so that a
+ * released buffer can be handed to any request of the same size class.
+ */
+public class BufferPool {
+	private static final int MIN_CLASS_SHIFT = 8, MAX_CLASS_SHIFT = 20;
+	/**
+	 * Beyond this, released buffers in a size class are left for the GC.
+	 */
+	private static final int MAX_POOLED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	public static final BufferPool instance = new BufferPool();
+
+	private final Queue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCount;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private BufferPool() {
+		int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+		free = new Queue[classes];
+		freeCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			freeCount[i] = new AtomicInteger(0);
+		}
+	}
+
+	/**
+	 * Returns -1 if the capacity is too large to be pooled.
+	 */
+	private static int sizeClass(int capacity) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1 << MIN_CLASS_SHIFT) - 1);
+		if (shift > MAX_CLASS_SHIFT)
+			return -1;
+		return shift - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * Thread-safe. The returned buffer is cleared and has at least the given
+	 * capacity.
+	 */
+	public ByteBuffer borrow(int minCapacity) {
+		int sizeClass = sizeClass(minCapacity);
+		if (sizeClass == -1)
+			return ByteBuffer.allocateDirect(minCapacity);
+
+		ByteBuffer buf = free[sizeClass].poll();
+		if (buf == null)
+			return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+		freeCount[sizeClass].decrementAndGet();
+		return buf;
+	}
+
+	/**
+	 * Thread-safe. The caller must not touch buf afterwards.
+	 */
+	public void release(ByteBuffer buf) {
+		int sizeClass = sizeClass(buf.capacity());
+		if (sizeClass == -1 || buf.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT) || !buf.isDirect())
+			return;
+		if (freeCount[sizeClass].incrementAndGet() << (sizeClass + MIN_CLASS_SHIFT) > MAX_POOLED_BYTES_PER_CLASS) {
+			freeCount[sizeClass].decrementAndGet();
+			return;
+		}
+
+		buf.clear();
+		free[sizeClass].add(buf);
+	}
+}
@@ -7,9 +7,13 @@ public class Constants {
 	public static final int PORT = 28713;
 	public static final int SOCKET_TIMEOUT = 1000;
 	public static final int BUFFER_SIZE = 1024;
+	public static final int RECEIVE_BUFFER_SIZE = 8192;
+	public static final int MAX_PACKET_LENGTH = 4 * 1024 * 1024;
 
 	public static final float SPLASH_SCREEN_MIN_TIME = 1f;
 
 	public static final int FILE_SIGNATURE = 0xCE1D01D5;
-	public static final short VERSION = 1;
+	public static final short VERSION = 2;
+	public static final short MIN_COMPATIBLE_VERSION = 1;
+	public static final short VARINT_FRAMING_VERSION = 2;
 }
@@ -1,12 +1,10 @@
 package in.kevinj.colonists;
 
-import in.kevinj.colonists.world.Coordinate;
+import in.kevinj.colonists.world.CoordinateSet;
 import in.kevinj.colonists.world.PlayerAction;
 
-import java.util.Set;
-
 public class LocalPlayer extends Player {
-	public LocalPlayer(String name, Set<Coordinate.NegativeSpace> availableMoves) {
+	public LocalPlayer(String name, CoordinateSet availableMoves) {
 		super(name, availableMoves);
 	}
 
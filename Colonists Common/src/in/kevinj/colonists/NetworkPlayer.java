@@ -1,18 +1,32 @@
 package in.kevinj.colonists;
 
-import in.kevinj.colonists.world.Coordinate;
+import in.kevinj.colonists.world.ActionBuffer;
+import in.kevinj.colonists.world.CoordinateSet;
 import in.kevinj.colonists.world.PlayerAction;
+import in.kevinj.colonists.world.PlayerActionCodec;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 
 public class NetworkPlayer extends Player {
+	/**
+	 * Candidates are only for show, so they are sent at most this often.
+	 */
+	private static final float CONSIDER_INTERVAL = 0.05f;
+
 	private Session ses;
+	private PlayerActionCodec codec;
+	private final ActionBuffer outbound;
+	private final List<PlayerAction> sending;
+	private float sinceLastSend;
 
 	public Runnable onFlee;
 
 	public NetworkPlayer(String name, Session ses) {
-		super(name, new HashSet<Coordinate.NegativeSpace>());
+		super(name, new CoordinateSet());
 		this.ses = ses;
+		outbound = new ActionBuffer();
+		sending = new ArrayList<PlayerAction>();
 	}
 
 	@Override
@@ -21,29 +35,58 @@ public class NetworkPlayer extends Player {
 		if (move != null)
 			return move;
 
-		/*Session.PacketReader reader = ses.read();
-		if (reader == null)
+		if (codec == null)
 			return null;
 
-		try {
-			switch (reader.getByte()) {
-				case OP_ATTACK:
+		Session.PacketReader reader;
+		while ((reader = ses.read()) != null) {
+			try {
+				move = codec.decode(reader);
+			} finally {
+				reader.close();
 			}
-			return null;
-		} finally {
-			reader.close();
-		}*/
+			if (move != null)
+				return move;
+		}
 		return null;
 	}
 
 	@Override
 	public void sendMove(PlayerAction move) {
-		/*Session.PacketWriter writer = ses.write();
-		try {
-			writer.putByte(OP_ATTACK);
-		} finally {
-			writer.close();
-		}*/
+		if (codec == null || !codec.canEncode(move))
+			return;
+
+		outbound.add(move);
+	}
+
+	@Override
+	public void flush(float tDelta) {
+		sinceLastSend += tDelta;
+		if (outbound.isEmpty())
+			return;
+		// commits go out right away, considers can wait for more to fold in
+		if (!outbound.hasCommitted() && sinceLastSend < CONSIDER_INTERVAL)
+			return;
+
+		outbound.drainTo(sending);
+		for (PlayerAction move : sending) {
+			Session.PacketWriter writer = ses.write();
+			try {
+				codec.encode(move, writer);
+			} finally {
+				writer.close();
+			}
+		}
+		sending.clear();
+		ses.flush();
+		sinceLastSend = 0;
+	}
+
+	/**
+	 * Moves can't be sent or received until the map they apply to is known.
+	 */
+	public void setCodec(PlayerActionCodec codec) {
+		this.codec = codec;
 	}
 
 	@Override
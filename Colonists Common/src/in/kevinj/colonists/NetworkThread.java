@@ -0,0 +1,185 @@
+package in.kevinj.colonists;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Owns the sockets of the client. Blocks in select() so that an idle network
+ * costs the game loop nothing, and posts connected sessions and received
+ * packets for the game loop to pick up. The notifier is run whenever
+ * something was posted so that a game loop that only renders on demand knows
+ * to wake up.
+ */
+public class NetworkThread implements Runnable {
+	/* package-private */ interface ReadyHandler {
+		/**
+		 * Called on the network thread whenever the key is selected.
+		 */
+		public void ready(SelectionKey key);
+	}
+
+	private static final int TICK_MILLIS = 50;
+	private static final int WHEEL_SIZE = 256;
+
+	public static final NetworkThread instance = new NetworkThread();
+
+	private final Queue<Runnable> tasks;
+	private volatile Runnable notifier;
+	private Selector selector;
+	private Thread thread;
+	private TimerWheel timers;
+	/**
+	 * Set once the selector is open and cleared when the thread exits. Tasks
+	 * posted while it is clear run on the thread that posts them.
+	 */
+	private volatile boolean running;
+
+	private NetworkThread() {
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Called on the network thread, so it should only signal the game loop,
+	 * e.g. by requesting a render.
+	 */
+	public void setNotifier(Runnable notifier) {
+		this.notifier = notifier;
+	}
+
+	/* package-private */ void notifyPosted() {
+		Runnable notifier = this.notifier;
+		if (notifier != null)
+			notifier.run();
+	}
+
+	/* package-private */ synchronized void start() throws IOException {
+		if (running)
+			return;
+
+		selector = Selector.open();
+		timers = new TimerWheel(TICK_MILLIS, WHEEL_SIZE, now());
+		thread = new Thread(this, "network-selector");
+		thread.setDaemon(true);
+		running = true;
+		thread.start();
+	}
+
+	/* package-private */ boolean inNetworkThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Network thread only.
+	 */
+	/* package-private */ Selector selector() {
+		return selector;
+	}
+
+	/**
+	 * Thread-safe. Runs task on the network thread, which is the only thread
+	 * allowed to register channels with the selector. If the network thread
+	 * never started or has died, nobody else is touching the channels, so the
+	 * task runs right here instead, e.g. to close whatever it left open.
+	 */
+	/* package-private */ void execute(Runnable task) {
+		tasks.offer(task);
+		if (running)
+			selector.wakeup();
+		else
+			// the network thread drains the queue once more after clearing
+			// running, so whatever it missed is ours
+			runTasks();
+	}
+
+	/**
+	 * Thread-safe. Runs task on the network thread once delayMillis passed,
+	 * give or take a tick, unless the timeout is canceled first.
+	 */
+	public TimerWheel.Timeout schedule(Runnable task, final int delayMillis) {
+		final TimerWheel.Timeout timeout = new TimerWheel.Timeout(task);
+		if (inNetworkThread()) {
+			timers.add(timeout, delayMillis, now());
+		} else {
+			final long scheduled = now();
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					timers.add(timeout, Math.max(0, delayMillis - (now() - scheduled)), now());
+				}
+			});
+		}
+		return timeout;
+	}
+
+	/**
+	 * Thread-safe. The task won't run if the network thread hasn't started it
+	 * yet by the time the cancellation reaches it.
+	 */
+	public void cancel(final TimerWheel.Timeout timeout) {
+		if (inNetworkThread()) {
+			timers.remove(timeout);
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					timers.remove(timeout);
+				}
+			});
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void processSelectedKeys() {
+		for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+			SelectionKey key = iter.next();
+			iter.remove();
+			try {
+				((ReadyHandler) key.attachment()).ready(key);
+			} catch (CancelledKeyException e) {
+				// closed by another thread
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				selector.select(timers.millisUntilNextTick(now()));
+				runTasks();
+				processSelectedKeys();
+				if (timers.expire(now()) != 0)
+					notifyPosted();
+			}
+		} catch (ClosedSelectorException e) {
+			// shut down
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			running = false;
+			runTasks();
+		}
+	}
+}
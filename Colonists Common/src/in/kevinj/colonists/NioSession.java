@@ -3,82 +3,159 @@ package in.kevinj.colonists;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NioSession implements Session {
-	private static final Charset asciiEncoder = Charset.forName("US-ASCII");
-
 	private class PacketReader implements Session.PacketReader {
-		private boolean waitingForPayload;
+		/**
+		 * End of the received bytes in readBuf while a packet is being read,
+		 * since readBuf's limit is moved to the end of the packet.
+		 */
+		private int receivedLimit;
+		/**
+		 * The buffer that holds the current packet.
+		 */
+		protected ByteBuffer buf;
 
-		/* package-private */ boolean prepare() {
+		/**
+		 * Issues a single read for as much as readBuf can hold past any partial
+		 * packet that is carried over from the last read.
+		 */
+		/* package-private */ boolean fill() {
+			if (readBuf == null) {
+				readBuf = BufferPool.instance.borrow(Constants.RECEIVE_BUFFER_SIZE);
+				readBuf.limit(0);
+			}
+			SocketChannel channel = NioSession.this.channel;
+			if (channel == null)
+				return false;
+			int read;
+			readBuf.compact();
 			try {
-				if (!waitingForPayload) {
-					if (channel.read(readBuf) == -1) {
-						NioSession.this.close();
-						return false;
-					}
-					if (readBuf.remaining() != 0)
-						return false; // not enough bytes
-					readBuf.flip();
-					short packetLength = readBuf.getShort();
-					readBuf.clear();
-					if (packetLength > readBuf.remaining())
-						throw new RuntimeException("Read buffer too small. Needed " + packetLength + " bytes, have " + readBuf.remaining());
-					readBuf.limit(packetLength);
-					waitingForPayload = true;
-				}
-				if (channel.read(readBuf) == -1) {
-					NioSession.this.close();
-					return false;
-				}
-				if (readBuf.remaining() != 0)
-					return false; // not enough bytes
-				readBuf.flip();
-				return true;
+				read = channel.read(readBuf);
+			} catch (ClosedChannelException e) {
+				// closed by another thread
+				return false;
 			} catch (IOException e) {
 				e.printStackTrace();
+				// the connection is gone, don't keep reporting it as readable
+				NioSession.this.close();
+				return false;
+			} finally {
+				readBuf.flip();
+			}
+			if (read == -1) {
+				NioSession.this.close();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Swaps readBuf for a larger pooled buffer when a packet won't fit.
+		 */
+		private void grow(int n) {
+			ByteBuffer bigger = BufferPool.instance.borrow(n);
+			bigger.put(readBuf);
+			bigger.flip();
+			BufferPool.instance.release(readBuf);
+			readBuf = bigger;
+		}
+
+		/**
+		 * Exposes the next packet in readBuf if all of its bytes were received.
+		 */
+		/* package-private */ boolean prepare() throws IOException {
+			if (readBuf == null)
 				return false;
+			int start = readBuf.position();
+			int available = readBuf.remaining();
+			int packetLength, headerLength;
+			if (varintFraming) {
+				packetLength = 0;
+				headerLength = 0;
+				int b;
+				do {
+					if (headerLength == available)
+						return false; // not enough bytes
+					if (headerLength == 5)
+						return malformed("Packet length prefix is longer than 5 bytes");
+					b = readBuf.get(start + headerLength);
+					packetLength |= (b & 0x7F) << (7 * headerLength);
+					headerLength++;
+				} while ((b & 0x80) != 0);
+			} else {
+				if (available < 2)
+					return false; // not enough bytes
+				packetLength = readBuf.getShort(start);
+				headerLength = 2;
 			}
+			if (packetLength < 0 || packetLength > maxPacketLength)
+				return malformed("Packet length " + packetLength + " exceeds the limit of " + maxPacketLength + " bytes");
+			if (headerLength + packetLength > readBuf.capacity())
+				grow(headerLength + packetLength);
+			if (available < headerLength + packetLength)
+				return false; // not enough bytes
+			receivedLimit = readBuf.limit();
+			readBuf.position(start + headerLength);
+			readBuf.limit(start + headerLength + packetLength);
+			buf = readBuf;
+			return true;
+		}
+
+		/**
+		 * We can't find the next packet boundary, so nothing else in the stream
+		 * can be trusted.
+		 */
+		private boolean malformed(String message) throws IOException {
+			NioSession.this.close();
+			throw new IOException(message);
+		}
+
+		/**
+		 * Skips any unread bytes of the current packet.
+		 */
+		/* package-private */ void finish() {
+			readBuf.position(readBuf.limit());
+			readBuf.limit(receivedLimit);
+			buf = null;
 		}
 
 		@Override
 		public byte[] getBytes(int n) {
 			byte[] bytes = new byte[n];
-			readBuf.get(bytes);
+			buf.get(bytes);
 			return bytes;
 		}
 
 		@Override
 		public byte getByte() {
-			return readBuf.get();
+			return buf.get();
 		}
 
 		@Override
 		public short getShort() {
-			return readBuf.getShort();
+			return buf.getShort();
 		}
 
 		@Override
 		public int getInt() {
-			return readBuf.getInt();
+			return buf.getInt();
 		}
 
 		@Override
 		public long getLong() {
-			return readBuf.getLong();
+			return buf.getLong();
 		}
 
 		@Override
@@ -88,12 +165,12 @@ public class NioSession implements Session {
 
 		@Override
 		public float getFloat() {
-			return readBuf.getFloat();
+			return buf.getFloat();
 		}
 
 		@Override
 		public double getDouble() {
-			return readBuf.getDouble();
+			return buf.getDouble();
 		}
 
 		@Override
@@ -108,69 +185,133 @@ public class NioSession implements Session {
 
 		@Override
 		public String getLengthPrefixedAsciiString() {
-			return getAsciiString(readBuf.getShort());
+			return getAsciiString(buf.getShort());
+		}
+
+		@Override
+		public void close() {
+			finish();
+		}
+	}
+
+	/**
+	 * Reads packets that the network thread copied out of the socket's
+	 * receive buffer, so that the game loop never touches the socket.
+	 */
+	private class PostedPacketReader extends PacketReader {
+		private boolean closedFirst;
+
+		/* package-private */ boolean next() {
+			buf = inbound.poll();
+			return buf != null;
 		}
 
 		@Override
 		public void close() {
-			readBuf.clear();
-			readBuf.limit(2);
-			waitingForPayload = false;
-			packetLock.unlock();
+			BufferPool.instance.release(buf);
+			buf = null;
+			if (!closedFirst) {
+				closedFirst = true;
+				NetworkThread.instance.execute(new Runnable() {
+					@Override
+					public void run() {
+						firstClosed();
+					}
+				});
+			}
 		}
 	}
 
+	/**
+	 * Encodes a single packet into buffers of its own, so that any thread can
+	 * write without locking the session. Room is reserved for the packet
+	 * length, which is filled in once the packet is closed, so the same writer
+	 * works whether or not the length is known up front. A packet that
+	 * outgrows its buffer continues in a new one. Closing the writer posts the
+	 * packet to outbound, where only the owner of the session picks it up.
+	 */
 	private class PacketWriter implements Session.PacketWriter {
-		private final List<ByteBuffer> queuedWrites;
+		private final List<ByteBuffer> chunks;
 		private ByteBuffer writeBuf;
+		private int headerLength, limit;
+		private boolean varintHeader;
 		/**
-		 * Ensures that queuedWrites does not contain duplicate ByteBuffers.
-		 */
-		private boolean fastWriteBufInQueue;
-		/**
-		 * Ensures that packets are sent in order. While using fastWriteBuf
-		 * is preferred if it is not full, we cannot use it if
-		 *  1. queuedWrites is not empty, and
-		 *  2. fastWriteBuf exists in queuedWrites, and
-		 *  3. fastWriteBuf is not the last element in queuedWrites.
+		 * Payload bytes that were written to buffers before writeBuf.
 		 */
-		private boolean canUseFastWriteBuf;
+		private int chainedLength;
 
 		/* package-private */ PacketWriter() {
-			queuedWrites = new ArrayList<ByteBuffer>();
-			canUseFastWriteBuf = true;
+			chunks = new ArrayList<ByteBuffer>(1);
 		}
 
-		/* package-private */ void prepare(short n) {
-			if (fastWriteBuf.remaining() >= n + 2 && canUseFastWriteBuf)
-				writeBuf = fastWriteBuf;
+		/**
+		 * @param headerLength 2 for short length prefixes. For varint length
+		 * prefixes, enough bytes to hold the largest length we might send.
+		 */
+		/* package-private */ void prepare(int sizeHint, int headerLength, boolean varintHeader) {
+			this.headerLength = headerLength;
+			this.varintHeader = varintHeader;
+			if (!varintHeader)
+				limit = Short.MAX_VALUE;
+			else if (headerLength < 5)
+				limit = Math.min(maxPacketLength, (1 << (7 * headerLength)) - 1);
 			else
-				writeBuf = ByteBuffer.allocate(n + 2);
-			writeBuf.putShort(n);
+				limit = maxPacketLength;
+			writeBuf = BufferPool.instance.borrow(sizeHint + headerLength);
+			writeBuf.position(headerLength);
+			chunks.add(writeBuf);
+			chainedLength = 0;
+		}
+
+		private int length() {
+			if (chunks.size() == 1)
+				return writeBuf.position() - headerLength;
+			return chainedLength + writeBuf.position();
+		}
+
+		/**
+		 * Continues the packet in a new buffer if writeBuf can't hold n more
+		 * bytes. Values are never split across buffers.
+		 */
+		private void ensure(int n) {
+			if (writeBuf.remaining() < n) {
+				chainedLength = length();
+				writeBuf = BufferPool.instance.borrow(Math.max(n, Constants.BUFFER_SIZE));
+				chunks.add(writeBuf);
+			}
 		}
 
 		@Override
 		public void putBytes(byte... b) {
-			writeBuf.put(b);
+			int n = Math.min(b.length, writeBuf.remaining());
+			writeBuf.put(b, 0, n);
+			if (n != b.length) {
+				ensure(b.length - n);
+				writeBuf.put(b, n, b.length - n);
+			}
 		}
 
 		@Override
 		public void putByte(byte b) {
+			ensure(1);
 			writeBuf.put(b);
 		}
 
 		@Override
 		public void putShort(short s) {
+			ensure(2);
 			writeBuf.putShort(s);
 		}
 
 		@Override
 		public void putInt(int i) {
+			ensure(4);
 			writeBuf.putInt(i);
 		}
 
 		@Override
 		public void putLong(long l) {
+			ensure(8);
 			writeBuf.putLong(l);
 		}
 
@@ -181,20 +322,23 @@ public class NioSession implements Session {
 
 		@Override
 		public void putFloat(float f) {
+			ensure(4);
 			writeBuf.putFloat(f);
 		}
 
 		@Override
 		public void putDouble(double d) {
+			ensure(8);
 			writeBuf.putDouble(d);
 		}
 
 		@Override
 		public void putAsciiString(int n, String s) {
-			byte[] bytes = new byte[n];
-			for (int i = 0; i < bytes.length && i < s.length(); i++)
-				bytes[i] = (byte) s.charAt(i);
-			putBytes(bytes);
+			int length = (s == null ? 0 : Math.min(s.length(), n));
+			for (int i = 0; i < length; i++)
+				putByte((byte) s.charAt(i));
+			for (int i = length; i < n; i++)
+				putByte((byte) 0);
 		}
 
 		@Override
@@ -203,291 +347,432 @@ public class NioSession implements Session {
 			putAsciiString(s.length(), s);
 		}
 
-		/* package-private */ boolean flush() throws IOException {
-			boolean success = true;
-			for (Iterator<ByteBuffer> iter = queuedWrites.iterator(); success && iter.hasNext(); ) {
-				ByteBuffer buf = iter.next();
-				buf.flip();
-				channel.write(buf);
-				if (buf.remaining() != 0) {
-					success = false;
-				} else {
-					iter.remove();
-					if (buf == fastWriteBuf) {
-						fastWriteBufInQueue = false;
-						canUseFastWriteBuf = true;
-					}
-				}
-				buf.compact();
-			}
-			if (success) {
-				SelectionKey key = channel.keyFor(selector);
-				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-			}
-			return success;
-		}
-
-		/* package-private */ void sendOrQueue(ByteBuffer buf) throws IOException {
-			boolean flushed = true;
-			boolean bufFlushed = (buf == fastWriteBuf && fastWriteBufInQueue);
-			if (!queuedWrites.isEmpty())
-				flushed = flush();
-			if (flushed && !bufFlushed) {
-				buf.flip();
-				channel.write(buf);
-				flushed = (buf.remaining() == 0);
-				buf.compact();
-			}
-			if (!flushed) {
-				if (buf == fastWriteBuf) {
-					if (!fastWriteBufInQueue) {
-						if (queuedWrites.isEmpty()) {
-							SelectionKey key = channel.keyFor(selector);
-							key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-						}
-						queuedWrites.add(buf);
-						fastWriteBufInQueue = true;
-					}
-				} else {
-					if (queuedWrites.isEmpty()) {
-						SelectionKey key = channel.keyFor(selector);
-						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-					}
-					queuedWrites.add(buf);
-					if (fastWriteBufInQueue)
-						canUseFastWriteBuf = false;
-				}
-			}
+		/**
+		 * Hands the buffers over to whoever picks up the packet and makes the
+		 * writer available to the next thread that writes to this session.
+		 */
+		/* package-private */ void recycle() {
+			chunks.clear();
+			writeBuf = null;
+			idleWriters.offer(this);
 		}
 
 		@Override
 		public void close() {
-			// TODO: figure out whether we actually wrote n bytes. if not, log warning and pad buffer with zeros.
-			// ...or, go back to where length was written and overwrite it. we can get eliminate inefficient
-			// BufferedPacketWriter instances that way as long as we have an upper bound for packet length.
-			try {
-				sendOrQueue(writeBuf);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				packetLock.unlock();
+			int length = length();
+			if (length > limit) {
+				for (ByteBuffer buf : chunks)
+					BufferPool.instance.release(buf);
+				recycle();
+				throw new RuntimeException("Packet too large. Wrote " + length + " bytes, can send " + limit);
+			}
+			ByteBuffer headerBuf = chunks.get(0);
+			if (varintHeader) {
+				//pad with continuation bits if the length needs less room
+				//than we reserved
+				for (int i = 0; i < headerLength - 1; i++)
+					headerBuf.put(i, (byte) (length >>> (7 * i) & 0x7F | 0x80));
+				headerBuf.put(headerLength - 1, (byte) (length >>> (7 * (headerLength - 1))));
+			} else {
+				headerBuf.putShort(0, (short) length);
 			}
+			writeBuf = null;
+			//goes out on the owner's next flush
+			outbound.offer(this);
 		}
 	}
 
-	private class BufferedPacketWriter implements Session.PacketWriter {
-		private byte[] buffer;
-		private int index;
-
-		/* package-private */ BufferedPacketWriter() {
-			buffer = new byte[0x40];
+	private SelectionKey key;
+	private volatile SocketChannel channel;
+	/**
+	 * The thread that created the session. Only it reads from the channel and
+	 * writes to it, so neither needs a lock. Other threads post their packets
+	 * to outbound and wake it up.
+	 */
+	private final Thread owner;
+	/**
+	 * Borrowed from the pool only while we have received bytes that aren't
+	 * consumed yet, so that idle sessions hold on to no buffers at all.
+	 */
+	private ByteBuffer readBuf;
+	/**
+	 * Closed packets from any thread, oldest first.
+	 */
+	private final Queue<PacketWriter> outbound;
+	private final Queue<PacketWriter> idleWriters;
+	/**
+	 * Packets the owner took from outbound but the kernel did not accept yet.
+	 * Every buffer is in write mode, i.e. its unsent bytes are between 0 and
+	 * its position, and is returned to the pool as soon as all of its bytes
+	 * are sent.
+	 */
+	private final List<ByteBuffer> queuedWrites;
+	private ByteBuffer[] gatheredWrites;
+	private final PacketReader reader;
+	/**
+	 * Packets received by the network thread, oldest first. Null unless the
+	 * session was created by the network thread.
+	 */
+	private final Queue<ByteBuffer> inbound;
+	private final PostedPacketReader postedReader;
+	/**
+	 * Network thread only. Handling the first packet, i.e. the handshake,
+	 * may change the framing, so nothing after it is parsed until the game
+	 * loop closed it.
+	 */
+	private boolean firstPosted, awaitingFirstClose;
+	private final AtomicInteger interest;
+	private volatile boolean varintFraming;
+	private volatile int maxPacketLength;
+
+	private NioSession(SelectionKey key, boolean posted) {
+		this.key = key;
+		this.channel = (SocketChannel) key.channel();
+		owner = Thread.currentThread();
+		outbound = new ConcurrentLinkedQueue<PacketWriter>();
+		idleWriters = new ConcurrentLinkedQueue<PacketWriter>();
+		queuedWrites = new ArrayList<ByteBuffer>();
+		gatheredWrites = new ByteBuffer[4];
+		reader = new PacketReader();
+		if (posted) {
+			inbound = new ConcurrentLinkedQueue<ByteBuffer>();
+			postedReader = new PostedPacketReader();
+		} else {
+			inbound = null;
+			postedReader = null;
 		}
+		maxPacketLength = Short.MAX_VALUE;
+		interest = new AtomicInteger(key.interestOps());
+	}
 
-		/* package-private */ void prepare() {
-			index = 2;
-		}
+	private static int varintLength(int n) {
+		int length = 1;
+		while ((n >>>= 7) != 0)
+			length++;
+		return length;
+	}
 
-		private void grow(int min) {
-			int increase = Math.max(buffer.length / 2, min);
-			byte[] copy = new byte[buffer.length + increase];
-			System.arraycopy(buffer, 0, copy, 0, index);
-			buffer = copy;
+	private void releaseReadBufIfConsumed() {
+		if (readBuf != null && !readBuf.hasRemaining()) {
+			BufferPool.instance.release(readBuf);
+			readBuf = null;
 		}
+	}
 
-		@Override
-		public void putBytes(byte... b) {
-			if (index + b.length >= buffer.length + 1)
-				grow(b.length);
+	private PacketWriter acquireWriter() {
+		PacketWriter writer = idleWriters.poll();
+		if (writer == null)
+			writer = new PacketWriter();
+		return writer;
+	}
 
-			System.arraycopy(b, 0, buffer, index, b.length);
-			index += b.length;
-		}
+	/**
+	 * Any thread. Several threads may change the interest set at once, so the
+	 * set they agreed on is kept in interest and every thread that changes it
+	 * writes it through to the key until the two match. That way a stale
+	 * write from one thread can't be the last one.
+	 */
+	private void updateInterest(int add, int remove) {
+		int ops, next;
+		do {
+			ops = interest.get();
+			next = (ops | add) & ~remove;
+			if (ops == next)
+				return;
+		} while (!interest.compareAndSet(ops, next));
+		do {
+			next = interest.get();
+			key.interestOps(next);
+		} while (interest.get() != next);
+	}
 
-		@Override
-		public void putByte(byte b) {
-			if (index == buffer.length)
-				grow(1);
+	private void setWriteInterest(boolean interested) {
+		if (interested)
+			updateInterest(SelectionKey.OP_WRITE, 0);
+		else
+			updateInterest(0, SelectionKey.OP_WRITE);
+	}
 
-			buffer[index++] = b;
+	/**
+	 * Any thread. Asks the owner to flush by having the selector report the
+	 * channel as writable.
+	 */
+	private void requestFlush() {
+		try {
+			setWriteInterest(true);
+		} catch (CancelledKeyException e) {
+			// closed by another thread
+			return;
 		}
+		// owner may be blocked in select() with the old interest set
+		key.selector().wakeup();
+	}
 
-		@Override
-		public void putShort(short s) {
-			putBytes(
-				(byte) ((s >>> 8) & 0xFF),
-				(byte) ((s & 0xFF))
-			);
+	/**
+	 * Owner only. Moves the buffers of every posted packet to queuedWrites.
+	 */
+	private void drainOutbound() {
+		PacketWriter posted;
+		while ((posted = outbound.poll()) != null) {
+			queuedWrites.addAll(posted.chunks);
+			posted.recycle();
 		}
+	}
 
-		@Override
-		public void putInt(int i) {
-			putBytes(
-				(byte) ((i >>> 24) & 0xFF),
-				(byte) ((i >>> 16) & 0xFF),
-				(byte) ((i >>> 8) & 0xFF),
-				(byte) ((i & 0xFF))
-			);
+	/**
+	 * Owner only. Hands every queued packet to the kernel in a single
+	 * gathering write.
+	 * @return true if the kernel accepted all of them.
+	 */
+	private boolean writeQueued(SocketChannel channel) throws IOException {
+		int count = queuedWrites.size();
+		if (count == 0)
+			return true;
+
+		if (gatheredWrites.length < count)
+			gatheredWrites = new ByteBuffer[Math.max(count, gatheredWrites.length * 2)];
+		for (int i = 0; i < count; i++) {
+			ByteBuffer buf = queuedWrites.get(i);
+			buf.flip();
+			gatheredWrites[i] = buf;
 		}
-
-		@Override
-		public void putLong(long l) {
-			putBytes(
-				(byte) ((l >>> 56) & 0xFF),
-				(byte) ((l >>> 48) & 0xFF),
-				(byte) ((l >>> 40) & 0xFF),
-				(byte) ((l >>> 32) & 0xFF),
-				(byte) ((l >>> 24) & 0xFF),
-				(byte) ((l >>> 16) & 0xFF),
-				(byte) ((l >>> 8) & 0xFF),
-				(byte) ((l & 0xFF))
-			);
+		try {
+			channel.write(gatheredWrites, 0, count);
+		} finally {
+			int sent = 0;
+			for (int i = 0; i < count; i++) {
+				ByteBuffer buf = gatheredWrites[i];
+				if (sent == i && !buf.hasRemaining()) {
+					BufferPool.instance.release(buf);
+					sent++;
+				} else {
+					buf.compact();
+				}
+				gatheredWrites[i] = null;
+			}
+			queuedWrites.subList(0, sent).clear();
 		}
+		return queuedWrites.isEmpty();
+	}
 
-		@Override
-		public void putAsciiChar(char c) {
-			putByte((byte) c);
-		}
+	/**
+	 * Owner only. Whatever the kernel did not accept stays queued for when the
+	 * channel becomes writable again.
+	 */
+	private boolean flushQueued() throws IOException {
+		SocketChannel channel = this.channel;
+		if (channel == null)
+			return false;
 
-		@Override
-		public void putFloat(float f) {
-			putInt(Float.floatToRawIntBits(f));
+		try {
+			do {
+				drainOutbound();
+				if (!writeQueued(channel)) {
+					setWriteInterest(true);
+					return false;
+				}
+				setWriteInterest(false);
+				// a packet posted after we drained may have had its OP_WRITE
+				// request cleared just now
+			} while (!outbound.isEmpty());
+			return true;
+		} catch (CancelledKeyException e) {
+			// closed by another thread
+			return false;
 		}
+	}
 
-		@Override
-		public void putDouble(double d) {
-			putLong(Double.doubleToRawLongBits(d));
+	/**
+	 * For sessions created with {@link #attach(SelectionKey)}. Must be called
+	 * by the owner of the selector whenever the key is selected. Flushes any
+	 * queued writes if the channel became writable.
+	 * @return true if the channel is readable, in which case the caller should
+	 * call {@link #read()} until it returns null.
+	 */
+	public boolean processReadyOps() {
+		try {
+			if (key.isValid() && key.isWritable()) {
+				try {
+					flushQueued();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			return key.isValid() && key.isReadable();
+		} catch (CancelledKeyException e) {
+			// closed by another thread
+			return false;
 		}
+	}
 
-		@Override
-		public void putAsciiString(int n, String s) {
-			byte[] space = new byte[n];
-			if (s != null) {
-				byte[] ascii = s.getBytes(asciiEncoder);
-				System.arraycopy(ascii, 0, space, 0, Math.min(s.length(), n));
-			}
-			putBytes(space);
+	public boolean isOpen() {
+		SocketChannel channel = this.channel;
+		return channel != null && channel.isOpen();
+	}
+
+	@Override
+	public PacketReader read() {
+		if (inbound != null)
+			return postedReader.next() ? postedReader : null;
+
+		assert Thread.currentThread() == owner;
+		try {
+			// only touch the socket once every packet from the last read is used
+			if (reader.prepare() || channel != null && reader.fill() && reader.prepare())
+				return reader;
+			releaseReadBufIfConsumed();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
 		}
+	}
 
-		@Override
-		public void putLengthPrefixedAsciiString(String s) {
-			putShort((short) s.length());
-			putBytes(s.getBytes(asciiEncoder));
+	private int handleReceived(PacketHandler handler) throws IOException {
+		int count = 0;
+		while (reader.prepare()) {
+			try {
+				handler.handle(reader);
+			} finally {
+				reader.finish();
+			}
+			count++;
 		}
+		return count;
+	}
 
-		@Override
-		public void close() {
+	private int handlePosted(PacketHandler handler) {
+		int count = 0;
+		while (postedReader.next()) {
 			try {
-				ByteBuffer buf;
-				int packetSize = index;
-				index = 0;
-				putShort((short) (packetSize - 2));
-				if (packetSize == buffer.length)
-					buf = ByteBuffer.wrap(buffer);
-				else
-					buf = ByteBuffer.wrap(buffer, 0, packetSize);
-				buf.limit(packetSize);
-				buf.position(packetSize);
-				writer.sendOrQueue(buf);
-
-				if (buffer.length > Constants.BUFFER_SIZE)
-					buffer = new byte[0x40]; // don't keep large buffer allocated after a very long packet
-			} catch (IOException e) {
-				e.printStackTrace();
+				handler.handle(postedReader);
 			} finally {
-				packetLock.unlock();
+				postedReader.close();
 			}
+			count++;
 		}
+		return count;
 	}
 
-	private Selector selector;
-	private SocketChannel channel;
-	private Lock packetLock;
-	private Iterator<SelectionKey> unprocessedKeys;
-	private ByteBuffer readBuf, fastWriteBuf;
-	private PacketReader reader;
-	private PacketWriter writer;
-	private BufferedPacketWriter unknownSizeWriter;
+	/**
+	 * Network thread only. Copies every complete packet out of readBuf into
+	 * its own pooled buffer for the game loop to pick up.
+	 */
+	private int postParsed() throws IOException {
+		int count = 0;
+		while (!awaitingFirstClose && reader.prepare()) {
+			ByteBuffer packet = BufferPool.instance.borrow(readBuf.remaining());
+			packet.put(readBuf);
+			packet.flip();
+			reader.finish();
+			if (!firstPosted) {
+				firstPosted = awaitingFirstClose = true;
+				// don't let the socket keep the selector busy in the meantime
+				updateInterest(0, SelectionKey.OP_READ);
+			}
+			inbound.offer(packet);
+			count++;
+		}
+		return count;
+	}
 
-	private NioSession(Selector selector, SocketChannel channel) {
-		this.selector = selector;
-		this.channel = channel;
-		packetLock = new ReentrantLock();
-		unprocessedKeys = Collections.<SelectionKey>emptySet().iterator();
-		readBuf = ByteBuffer.allocateDirect(Constants.BUFFER_SIZE);
-		fastWriteBuf = ByteBuffer.allocateDirect(Constants.BUFFER_SIZE);
-		reader = new PacketReader();
-		writer = new PacketWriter();
-		unknownSizeWriter = new BufferedPacketWriter();
+	/**
+	 * Network thread only. Issues a single read on the socket and posts every
+	 * complete packet in it.
+	 */
+	private int postReceived() {
+		if (awaitingFirstClose)
+			return 0;
 
-		readBuf.order(ByteOrder.BIG_ENDIAN);
-		readBuf.limit(2);
+		int count = 0;
+		try {
+			if (reader.fill())
+				count = postParsed();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		releaseReadBufIfConsumed();
+		return count;
 	}
 
-	private boolean processSelectionKey() {
-		SelectionKey key = unprocessedKeys.next();
-		unprocessedKeys.remove();
-		assert key.channel() == channel;
-		if (key.isValid() && key.isWritable()) {
-			try {
-				writer.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * Network thread only. The game loop is done with the first packet, so
+	 * parse whatever arrived behind it with the framing it settled on.
+	 */
+	private void firstClosed() {
+		awaitingFirstClose = false;
+		int count = 0;
+		try {
+			count = postParsed();
+			if (!awaitingFirstClose)
+				updateInterest(SelectionKey.OP_READ, 0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (CancelledKeyException e) {
+			// closed by another thread
 		}
-		if (key.isValid() && key.isReadable())
-			return reader.prepare();
-		return false;
+		releaseReadBufIfConsumed();
+		if (count != 0 || !isOpen())
+			NetworkThread.instance.notifyPosted();
 	}
 
 	@Override
-	public PacketReader read() {
-		boolean keepLocked = false;
-		packetLock.lock();
-		try {
-			if (unprocessedKeys.hasNext()) {
-				if (processSelectionKey()) {
-					keepLocked = true;
-					return reader;
-				}
-				return null;
-			}
-
-			int actions = selector.selectNow();
-			if (actions == 0)
-				// no packets received since last call here
-				return null;
+	public int readAll(PacketHandler handler) {
+		if (inbound != null)
+			return handlePosted(handler);
 
-			unprocessedKeys = selector.selectedKeys().iterator();
-			if (processSelectionKey()) {
-				keepLocked = true;
-				return reader;
-			}
-			return null;
+		assert Thread.currentThread() == owner;
+		try {
+			int count = handleReceived(handler);
+			if (channel != null && reader.fill())
+				count += handleReceived(handler);
+			releaseReadBufIfConsumed();
+			return count;
 		} catch (IOException e) {
 			e.printStackTrace();
-			return null;
-		} finally {
-			if (!keepLocked)
-				packetLock.unlock();
+			return 0;
 		}
 	}
 
 	@Override
-	public PacketWriter write(short n) {
-		packetLock.lock();
-		writer.prepare(n);
+	public PacketWriter write(int n) {
+		PacketWriter writer = acquireWriter();
+		boolean varint = varintFraming;
+		writer.prepare(n, varint ? varintLength(n) : 2, varint);
+		return writer;
+	}
+
+	@Override
+	public PacketWriter write() {
+		PacketWriter writer = acquireWriter();
+		boolean varint = varintFraming;
+		writer.prepare(0x40, varint ? varintLength(maxPacketLength) : 2, varint);
 		return writer;
 	}
 
 	@Override
-	public BufferedPacketWriter write() {
-		packetLock.lock();
-		unknownSizeWriter.prepare();
-		return unknownSizeWriter;
+	public void enableVarintFraming(int maxPacketLength) {
+		this.maxPacketLength = maxPacketLength;
+		varintFraming = true;
+	}
+
+	@Override
+	public void flush() {
+		if (Thread.currentThread() != owner) {
+			requestFlush();
+			return;
+		}
+		try {
+			flushQueued();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	@Override
 	public void close() {
+		SocketChannel channel = this.channel;
+		this.channel = null;
 		if (channel != null) {
 			try {
 				channel.close();
@@ -495,120 +780,198 @@ public class NioSession implements Session {
 				
 			}
 		}
-		if (selector != null) {
-			try {
-				selector.close();
-			} catch (IOException ex) {
-				
-			}
-		}
-		channel = null;
-		selector = null;
 	}
 
-	public static abstract class IncompleteNioSession {
-		public String error;
-
-		public abstract NioSession update(float tDelta);
+	/**
+	 * Wraps an accepted channel that is registered on a selector shared by
+	 * many sessions, e.g. a server reactor. The session is attached to the key
+	 * so that the owner of the selector can find it again when the key is
+	 * selected, and it never selects on its own.
+	 */
+	public static NioSession attach(SelectionKey key) {
+		NioSession ses = new NioSession(key, false);
+		key.attach(ses);
+		return ses;
+	}
 
-		public abstract void cancel();
+	/**
+	 * Network thread only. Wraps a channel that was just connected or
+	 * accepted by the network thread, which from then on reads every packet
+	 * as soon as it arrives and posts it for {@link #read()}.
+	 */
+	private static NioSession dispatch(SelectionKey key) {
+		final NioSession ses = new NioSession(key, true);
+		key.attach(new NetworkThread.ReadyHandler() {
+			@Override
+			public void ready(SelectionKey key) {
+				boolean readable = ses.processReadyOps();
+				if (readable && (ses.postReceived() != 0 || !ses.isOpen()))
+					NetworkThread.instance.notifyPosted();
+			}
+		});
+		return ses;
 	}
 
-	public static class IncompleteNioClientSession extends IncompleteNioSession {
-		private final int timeout;
-		private float elapsedTime;
+	/**
+	 * A connection that the network thread is still setting up. The game
+	 * loop polls {@link #update(float)}, which only checks what the network
+	 * thread posted and never touches the socket.
+	 */
+	public static abstract class IncompleteNioSession implements NetworkThread.ReadyHandler {
+		public volatile String error;
 
-		private Selector selector;
-		private SocketChannel channel;
-		private SelectionKey key;
+		private final int timeout;
+		private volatile NioSession completed;
+		/**
+		 * Network thread only. Set once the channel belongs to a session.
+		 */
+		private boolean handedOff;
+		private TimerWheel.Timeout timer;
 
-		/* package-private */ IncompleteNioClientSession(int timeout) {
+		protected IncompleteNioSession(int timeout) {
 			this.timeout = timeout;
 		}
 
-		/* package-private */ IncompleteNioClientSession initialize(SocketAddress addr) {
-			try {
-				channel = SocketChannel.open();
-				channel.configureBlocking(false);
-				channel.connect(addr);
+		/**
+		 * Network thread only. Closes every channel that is still open.
+		 */
+		protected abstract void closeChannels();
+
+		private void abandon() {
+			if (timer != null)
+				NetworkThread.instance.cancel(timer);
+			if (!handedOff)
+				closeChannels();
+		}
+
+		/**
+		 * Network thread only.
+		 */
+		protected abstract void register(Selector selector) throws IOException;
 
-				selector = Selector.open();
-				key = channel.register(selector, SelectionKey.OP_CONNECT);
+		/* package-private */ void start() {
+			try {
+				NetworkThread.instance.start();
 			} catch (IOException e) {
-				if (channel != null) {
+				error = e.getMessage();
+				return;
+			}
+			NetworkThread.instance.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (error != null)
+						// canceled before we got here
+						return;
 					try {
-						channel.close();
-					} catch (IOException ex) {
-						
+						register(NetworkThread.instance.selector());
+					} catch (IOException e) {
+						fail(e.getMessage());
+						return;
 					}
-				}
-				if (selector != null) {
-					try {
-						selector.close();
-					} catch (IOException ex) {
-						
+					if (timeout != 0) {
+						timer = NetworkThread.instance.schedule(new Runnable() {
+							@Override
+							public void run() {
+								fail("Timed out after " + timeout + " milliseconds");
+							}
+						}, timeout);
 					}
 				}
-				channel = null;
-				selector = null;
-				error = e.getMessage();
+			});
+		}
+
+		/**
+		 * Network thread only.
+		 */
+		protected void complete(SelectionKey key) {
+			if (timer != null)
+				NetworkThread.instance.cancel(timer);
+			handedOff = true;
+			NioSession ses = dispatch(key);
+			if (error != null) {
+				// canceled while we were connecting
+				ses.close();
+				return;
 			}
-			return this;
+			completed = ses;
+			NetworkThread.instance.notifyPosted();
 		}
 
-		@Override
+		/**
+		 * Network thread only.
+		 */
+		protected void fail(String message) {
+			abandon();
+			if (error == null)
+				error = message;
+			NetworkThread.instance.notifyPosted();
+		}
+
+		/**
+		 * @param tDelta unused since timeouts are tracked by the network
+		 * thread.
+		 * @return the session once, as soon as it is set up.
+		 */
 		public NioSession update(float tDelta) {
-			if (channel == null || selector == null)
-				return null;
+			NioSession ses = completed;
+			if (ses != null)
+				completed = null;
+			return ses;
+		}
 
-			elapsedTime += tDelta * 1000;
-			try {
-				int actions = selector.selectNow();
-				if (actions == 0) {
-					if (elapsedTime >= timeout && timeout != 0) {
-						// connect timed out
-						channel.close();
-						selector.close();
-						channel = null;
-						selector = null;
-						error = "Timed out after " + timeout + " milliseconds";
+		public void cancel() {
+			if (error == null)
+				error = "Canceled by user";
+			NetworkThread.instance.execute(new Runnable() {
+				@Override
+				public void run() {
+					abandon();
+					NioSession ses = completed;
+					if (ses != null) {
+						completed = null;
+						ses.close();
 					}
-					return null;
 				}
-				Set<SelectionKey> keys = selector.selectedKeys();
-				for (Iterator<SelectionKey> iter = keys.iterator(); iter.hasNext(); ) {
-					SelectionKey selected = iter.next();
-					iter.remove();
-					if (selected == key && selected.isValid() && selected.isConnectable())
-						if (channel.isConnectionPending())
-							channel.finishConnect();
+			});
+		}
+	}
+
+	public static class IncompleteNioClientSession extends IncompleteNioSession {
+		private final SocketAddress addr;
+		private SocketChannel channel;
+
+		/* package-private */ IncompleteNioClientSession(SocketAddress addr, int timeout) {
+			super(timeout);
+			this.addr = addr;
+		}
+
+		@Override
+		protected void register(Selector selector) throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if (channel.connect(addr))
+				complete(channel.register(selector, SelectionKey.OP_READ));
+			else
+				channel.register(selector, SelectionKey.OP_CONNECT, this);
+		}
+
+		@Override
+		public void ready(SelectionKey key) {
+			if (!key.isValid() || !key.isConnectable())
+				return;
+
+			try {
+				if (channel.finishConnect()) {
+					key.interestOps(SelectionKey.OP_READ);
+					complete(key);
 				}
-				key.interestOps(SelectionKey.OP_READ);
-				return new NioSession(selector, channel);
 			} catch (IOException e) {
-				if (channel != null) {
-					try {
-						channel.close();
-					} catch (IOException ex) {
-						
-					}
-				}
-				if (selector != null) {
-					try {
-						selector.close();
-					} catch (IOException ex) {
-						
-					}
-				}
-				channel = null;
-				selector = null;
-				error = e.getMessage();
-				return null;
+				fail(e.getMessage());
 			}
 		}
 
 		@Override
-		public void cancel() {
+		protected void closeChannels() {
 			if (channel != null) {
 				try {
 					channel.close();
@@ -616,98 +979,46 @@ public class NioSession implements Session {
 					
 				}
 			}
-			if (selector != null) {
-				try {
-					selector.close();
-				} catch (IOException ex) {
-					
-				}
-			}
-			channel = null;
-			selector = null;
-			error = "Canceled by user";
 		}
 	}
 
 	public static IncompleteNioClientSession beginCreateClient(SocketAddress addr, int timeout) {
-		return new IncompleteNioClientSession(timeout).initialize(addr);
+		IncompleteNioClientSession state = new IncompleteNioClientSession(addr, timeout);
+		state.start();
+		return state;
 	}
 
 	public static class IncompleteNioServerSession extends IncompleteNioSession {
-		private final int timeout;
-		private float elapsedTime;
-
-		private Selector selector;
+		private final SocketAddress addr;
 		private ServerSocketChannel channel;
-		private SocketChannel clientChannel;
-		private SelectionKey key;
 
-		/* package-private */ IncompleteNioServerSession(int timeout) {
-			this.timeout = timeout;
+		/* package-private */ IncompleteNioServerSession(SocketAddress addr, int timeout) {
+			super(timeout);
+			this.addr = addr;
 		}
 
-		/* package-private */ IncompleteNioServerSession initialize(SocketAddress addr) {
-			try {
-				channel = ServerSocketChannel.open();
-				channel.configureBlocking(false);
-				channel.socket().bind(addr);
-
-				selector = Selector.open();
-				key = channel.register(selector, SelectionKey.OP_ACCEPT);
-			} catch (IOException e) {
-				if (channel != null) {
-					try {
-						channel.close();
-					} catch (IOException ex) {
-						
-					}
-				}
-				if (selector != null) {
-					try {
-						selector.close();
-					} catch (IOException ex) {
-						
-					}
-				}
-				channel = null;
-				selector = null;
-				error = e.getMessage();
-			}
-			return this;
+		@Override
+		protected void register(Selector selector) throws IOException {
+			channel = ServerSocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().bind(addr);
+			channel.register(selector, SelectionKey.OP_ACCEPT, this);
 		}
 
 		@Override
-		public NioSession update(float tDelta) {
-			if (channel == null || selector == null)
-				return null;
+		public void ready(SelectionKey key) {
+			if (!key.isValid() || !key.isAcceptable())
+				return;
 
-			elapsedTime += tDelta * 1000;
+			SocketChannel clientChannel = null;
 			try {
-				int actions = selector.selectNow();
-				if (actions == 0) {
-					if (elapsedTime >= timeout && timeout != 0) {
-						// accept timed out
-						channel.close();
-						selector.close();
-						channel = null;
-						selector = null;
-						error = "Timed out after " + timeout + " milliseconds";
-					}
-					return null;
-				}
-				Set<SelectionKey> keys = selector.selectedKeys();
-				for (Iterator<SelectionKey> iter = keys.iterator(); iter.hasNext(); ) {
-					SelectionKey selected = iter.next();
-					iter.remove();
-					if (selected == key && selected.isValid() && selected.isAcceptable())
-						clientChannel = channel.accept();
-				}
-				key.cancel();
-				channel.close();
-				channel = null;
+				clientChannel = channel.accept();
+				if (clientChannel == null)
+					return;
+				// only wait for one peer
+				closeChannels();
 				clientChannel.configureBlocking(false);
-				clientChannel.register(selector, SelectionKey.OP_READ);
-				return new NioSession(selector, clientChannel);
+				complete(clientChannel.register(NetworkThread.instance.selector(), SelectionKey.OP_READ));
 			} catch (IOException e) {
 				if (clientChannel != null) {
 					try {
@@ -716,37 +1027,12 @@ public class NioSession implements Session {
 						
 					}
 				}
-				if (channel != null) {
-					try {
-						channel.close();
-					} catch (IOException ex) {
-						
-					}
-				}
-				if (selector != null) {
-					try {
-						selector.close();
-					} catch (IOException ex) {
-						
-					}
-				}
-				clientChannel = null;
-				channel = null;
-				selector = null;
-				error = e.getMessage();
-				return null;
+				fail(e.getMessage());
 			}
 		}
 
 		@Override
-		public void cancel() {
-			if (clientChannel != null) {
-				try {
-					clientChannel.close();
-				} catch (IOException ex) {
-					
-				}
-			}
+		protected void closeChannels() {
 			if (channel != null) {
 				try {
 					channel.close();
@@ -754,21 +1040,12 @@ public class NioSession implements Session {
 					
 				}
 			}
-			if (selector != null) {
-				try {
-					selector.close();
-				} catch (IOException ex) {
-					
-				}
-			}
-			clientChannel = null;
-			channel = null;
-			selector = null;
-			error = "Canceled by user";
 		}
 	}
 
 	public static IncompleteNioServerSession beginCreateServer(SocketAddress addr, int timeout) {
-		return new IncompleteNioServerSession(timeout).initialize(addr);
+		IncompleteNioServerSession state = new IncompleteNioServerSession(addr, timeout);
+		state.start();
+		return state;
 	}
 }
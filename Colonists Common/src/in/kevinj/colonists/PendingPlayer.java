@@ -1,13 +1,18 @@
 package in.kevinj.colonists;
 
-import in.kevinj.colonists.world.Coordinate;
+import in.kevinj.colonists.world.ActionBuffer;
+import in.kevinj.colonists.world.CoordinateSet;
 import in.kevinj.colonists.world.PlayerAction;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 public class PendingPlayer extends Player {
-	public PendingPlayer(String name, Set<Coordinate.NegativeSpace> availableMoves) {
+	private final ActionBuffer pending;
+
+	public PendingPlayer(String name, CoordinateSet availableMoves) {
 		super(name, availableMoves);
+		pending = new ActionBuffer();
 	}
 
 	@Override
@@ -17,20 +22,18 @@ public class PendingPlayer extends Player {
 
 	@Override
 	public void sendMove(PlayerAction move) {
-		if (move instanceof PlayerAction.BeginConsiderMove) {
-			//TODO: batch up sequence of other Consider/Commit moves into the net change
-		} else if (move instanceof PlayerAction.EndConsiderMove) {
-			//TODO: batch up sequence of other Consider/Commit moves into the net change
-		} else if (move instanceof PlayerAction.CommitMove) {
-			//TODO: batch up sequence of other Consider/Commit moves into the net change
-		} else {
-			queue.add(move);
-		}
+		pending.add(move);
 	}
 
+	/**
+	 * Only the net change of everything that was sent while we were waiting
+	 * for the player is passed on.
+	 */
 	public void transferTo(Player p) {
 		p.availableMoves.addAll(this.availableMoves);
-		for (PlayerAction move : this.queue)
+		List<PlayerAction> moves = new ArrayList<PlayerAction>();
+		pending.drainTo(moves);
+		for (PlayerAction move : moves)
 			p.sendMove(move);
 	}
 }
@@ -1,32 +1,40 @@
 package in.kevinj.colonists;
 
-import in.kevinj.colonists.world.Coordinate;
+import in.kevinj.colonists.world.CoordinateSet;
 import in.kevinj.colonists.world.PlayerAction;
 
-import java.util.LinkedList;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public abstract class Player {
+	/**
+	 * Can be added to from any thread, e.g. by an AI thinking in the
+	 * background, but is only drained by the game loop.
+	 */
 	protected final Queue<PlayerAction> queue;
 
-	public final Set<Coordinate.NegativeSpace> availableMoves;
+	public final CoordinateSet availableMoves;
 	public final String name;
 
-	public Player(String name, Set<Coordinate.NegativeSpace> availableMoves) {
+	public Player(String name, CoordinateSet availableMoves) {
 		this.name = name;
 		this.availableMoves = availableMoves;
-		queue = new LinkedList<PlayerAction>();
+		queue = new ConcurrentLinkedQueue<PlayerAction>();
 	}
 
 	public PlayerAction getNextMove() {
-		if (!queue.isEmpty())
-			return queue.poll();
-		return null;
+		return queue.poll();
 	}
 
 	public abstract void sendMove(PlayerAction move);
 
+	/**
+	 * Called once per tick, after all of the tick's moves were sent.
+	 */
+	public void flush(float tDelta) {
+		
+	}
+
 	public void sendFlee() {
 		
 	}
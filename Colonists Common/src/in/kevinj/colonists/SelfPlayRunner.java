@@ -0,0 +1,186 @@
+package in.kevinj.colonists;
+
+import in.kevinj.colonists.world.GameMap;
+import in.kevinj.colonists.world.MonteCarloSearch;
+import in.kevinj.colonists.world.SimulationMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays whole games between AIs on SimulationMaps, spread over a pool of
+ * threads. Games are handed out in batches, each with its own seed worked out
+ * from the run's seed and the batch's index, and each batch makes its own
+ * searches and maps. So the threads share nothing but the results they hand
+ * back, and a run gives the same results no matter how many threads play it.
+ *
+ * Every seat is played by the same MonteCarloSearch that AiPlayer uses, but
+ * with a fixed number of playouts per move instead of a think time.
+ */
+public class SelfPlayRunner {
+	private static final int BATCH_SIZE = 8;
+
+	public static class Result {
+		public int games;
+		public final int[] wins = new int[GameMap.NUM_PLAYERS];
+		public int ties;
+		public final long[] scores = new long[GameMap.NUM_PLAYERS];
+		public long placements;
+
+		public void add(Result other) {
+			games += other.games;
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				wins[i] += other.wins[i];
+				scores[i] += other.scores[i];
+			}
+			ties += other.ties;
+			placements += other.placements;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(games).append(" games, ").append(String.format("%.1f", (double) placements / games)).append(" placements per game, ").append(ties).append(" ties");
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+				sb.append("\n  seat ").append(i).append(": ").append(wins[i]).append(" wins, mean score ").append(String.format("%.2f", (double) scores[i] / games));
+			return sb.toString();
+		}
+	}
+
+	private final TrainerProperties[] seats;
+	private final int playoutsPerMove;
+
+	/**
+	 * @param seats the style of the AI in each seat, any of which can be null.
+	 */
+	public SelfPlayRunner(TrainerProperties[] seats, int playoutsPerMove) {
+		if (playoutsPerMove <= 0)
+			throw new IllegalArgumentException("playoutsPerMove must be positive");
+		this.seats = seats;
+		this.playoutsPerMove = playoutsPerMove;
+	}
+
+	/**
+	 * Plays games on the calling thread.
+	 */
+	public Result play(long seed, int games) {
+		Random random = new Random(seed);
+		MonteCarloSearch[] searches = new MonteCarloSearch[GameMap.NUM_PLAYERS];
+		//the tree never gets much wider than all the vertices and edges
+		int capacity = Math.max(1024, (playoutsPerMove + 1) * 80);
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			searches[i] = new MonteCarloSearch(seats[i], new Random(random.nextLong()), capacity);
+
+		Result result = new Result();
+		for (int g = 0; g < games; g++) {
+			SimulationMap game = SimulationMap.newGame(random);
+			while (!game.isGameOver()) {
+				int player = game.getCurrentPlayerTurn();
+				if (!game.hasLegalMoves(player)) {
+					if (!game.isSetUp())
+						//can't happen on a normal map, but don't loop forever
+						break;
+					game.endTurn();
+					continue;
+				}
+				game.play(searches[player].search(game, playoutsPerMove));
+				result.placements++;
+			}
+
+			int best = 0;
+			boolean tie = false;
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				int score = game.getScore(i);
+				result.scores[i] += score;
+				if (i != 0 && score > game.getScore(best)) {
+					best = i;
+					tie = false;
+				} else if (i != 0 && score == game.getScore(best)) {
+					tie = true;
+				}
+			}
+			if (tie)
+				result.ties++;
+			else
+				result.wins[best]++;
+			result.games++;
+		}
+		return result;
+	}
+
+	/**
+	 * Plays games on the given number of threads. If a game throws, the rest
+	 * are canceled and what it threw is thrown from here, since results that
+	 * silently leave games out would be skewed.
+	 */
+	public Result run(final long seed, int games, int threads) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> batches = new ArrayList<Future<Result>>();
+			for (int start = 0; start < games; start += BATCH_SIZE) {
+				final long batchSeed = seed * 31 + start;
+				final int batchGames = Math.min(BATCH_SIZE, games - start);
+				batches.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return play(batchSeed, batchGames);
+					}
+				}));
+			}
+
+			Result result = new Result();
+			for (Future<Result> batch : batches) {
+				try {
+					result.add(batch.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+			return result;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Usage: SelfPlayRunner [games] [playouts per move] [seed]
+	 *
+	 * Plays the games on 1, 2, 4, ... threads up to the number of cores, and
+	 * prints how many games a second each played and how well that scaled.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int playouts = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		SelfPlayRunner runner = new SelfPlayRunner(new TrainerProperties[GameMap.NUM_PLAYERS], playouts);
+		//warm up
+		runner.run(seed, Math.min(games, 4 * BATCH_SIZE), cores);
+
+		double baseline = 0;
+		Result result = null;
+		for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+			long start = System.nanoTime();
+			result = runner.run(seed, games, threads);
+			double gamesPerSecond = result.games / ((System.nanoTime() - start) / 1e9);
+			if (threads == 1)
+				baseline = gamesPerSecond;
+			System.out.println(String.format("%d threads: %.1f games/s, %.0f%% scaling efficiency", threads, gamesPerSecond, 100 * gamesPerSecond / baseline / threads));
+			if (threads == cores)
+				break;
+		}
+		System.out.println(result);
+	}
+}
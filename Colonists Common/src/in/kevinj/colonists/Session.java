@@ -51,11 +51,56 @@ public interface Session {
 		public void close();
 	}
 
+	public interface PacketHandler {
+		/**
+		 * Do not close the reader. It is closed once this returns.
+		 */
+		public void handle(PacketReader reader);
+	}
+
+	/**
+	 * Only the thread that owns the session may read from it.
+	 */
 	public PacketReader read();
 
-	public PacketWriter write(short n);
+	/**
+	 * Parses every complete packet out of a single read on the socket and
+	 * passes each of them to handler in the order they were received. Partial
+	 * packets are kept for the next call. Only the thread that owns the
+	 * session may call this.
+	 * @return the number of packets handled.
+	 */
+	public int readAll(PacketHandler handler);
+
+	/**
+	 * Any thread may write to the session without locking. Each packet is
+	 * encoded on the calling thread and queued once its writer is closed.
+	 * @param n the exact number of bytes that will be written. Use
+	 * {@link #write()} if it is not known ahead of time.
+	 */
+	public PacketWriter write(int n);
+
+	/**
+	 * Closing a PacketWriter only queues the packet. Call this once all of the
+	 * packets for the current tick are written to send them with as few
+	 * system calls as possible. Only the owner of the session touches the
+	 * socket, so on any other thread this just wakes the owner up to do it.
+	 */
+	public void flush();
 
 	public void close();
 
 	public PacketWriter write();
+
+	/**
+	 * Sessions start out with 2-byte length prefixes, which limits packets to
+	 * 32 KB, and the handshakes always use them. If both peers advertise a
+	 * {@link Constants#VERSION} of at least
+	 * {@link Constants#VARINT_FRAMING_VERSION}, each calls this while handling
+	 * the other's handshake, before its reader is closed, and from then on
+	 * packets in both directions use variable-length prefixes. Older peers
+	 * keep the 2-byte prefixes. Received packets longer than maxPacketLength
+	 * close the session.
+	 */
+	public void enableVarintFraming(int maxPacketLength);
 }
@@ -0,0 +1,210 @@
+package in.kevinj.colonists;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback benchmarks of the NioSession write path. Every benchmark sends
+ * to a plain blocking socket on another thread that throws away whatever it
+ * receives, so only the sending side is measured.
+ */
+public class SessionBenchmark {
+	private final ServerSocketChannel server;
+	private final SocketChannel channel;
+	private final Selector selector;
+	private final SelectionKey key;
+	private final NioSession ses;
+
+	private SessionBenchmark() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		Thread sink = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SocketChannel peer = server.accept();
+					ByteBuffer buf = ByteBuffer.allocateDirect(0x10000);
+					while (peer.read(buf) != -1)
+						buf.clear();
+					peer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "benchmark-sink");
+		sink.setDaemon(true);
+		sink.start();
+
+		channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		key = channel.register(selector, SelectionKey.OP_READ);
+		ses = NioSession.attach(key);
+	}
+
+	private void close() throws IOException {
+		ses.close();
+		selector.close();
+		server.close();
+	}
+
+	/**
+	 * Waits for the kernel to take whatever the last flush left queued.
+	 */
+	private void drain() throws IOException {
+		while ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			selector.select();
+			selector.selectedKeys().clear();
+			ses.processReadyOps();
+		}
+	}
+
+	/**
+	 * @return how many write system calls, including writev, the calling
+	 * thread has made, or -1 if the kernel does not say.
+	 */
+	private static long writeSyscalls() {
+		try {
+			FileInputStream in = new FileInputStream("/proc/thread-self/io");
+			try {
+				byte[] b = new byte[512];
+				int n = 0, read;
+				while (n < b.length && (read = in.read(b, n, b.length - n)) != -1)
+					n += read;
+				String io = new String(b, 0, n, "US-ASCII");
+				int start = io.indexOf("syscw: ") + "syscw: ".length();
+				return Long.parseLong(io.substring(start, io.indexOf('\n', start)));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends ticks of packetsPerTick packets, calling flush() either after
+	 * every packet, which is what closing a writer used to do, or once a tick.
+	 */
+	private void flush(int ticks, int packetsPerTick, int packetSize, boolean perPacket) throws IOException {
+		byte[] payload = new byte[packetSize];
+		long syscalls = writeSyscalls();
+		long start = System.nanoTime();
+		for (int i = 0; i < ticks; i++) {
+			for (int j = 0; j < packetsPerTick; j++) {
+				Session.PacketWriter writer = ses.write(packetSize);
+				writer.putBytes(payload);
+				writer.close();
+				if (perPacket)
+					ses.flush();
+			}
+			if (!perPacket)
+				ses.flush();
+			drain();
+		}
+		long elapsed = System.nanoTime() - start;
+		syscalls = writeSyscalls() - syscalls;
+		int packets = ticks * packetsPerTick;
+		System.out.printf("%-16s %8.3f writes/packet %10.0f packets/s%n", perPacket ? "flush per packet" : "flush per tick",
+				syscalls / (double) packets, packets / (elapsed / 1e9));
+	}
+
+	/**
+	 * Has producers threads each write packets packets, asking the owner to
+	 * flush after every batch of them, while this thread acts as the owner.
+	 */
+	private void contention(int producers, final int packets, final int batch, final int packetSize) throws IOException, InterruptedException {
+		final byte[] payload = new byte[packetSize];
+		final CountDownLatch go = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger(producers);
+		for (int i = 0; i < producers; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 1; j <= packets; j++) {
+						Session.PacketWriter writer = ses.write(packetSize);
+						writer.putBytes(payload);
+						writer.close();
+						if (j % batch == 0)
+							ses.flush();
+					}
+					ses.flush();
+					running.decrementAndGet();
+				}
+			}, "benchmark-producer-" + i).start();
+		}
+
+		long start = System.nanoTime();
+		go.countDown();
+		while (running.get() != 0) {
+			selector.select(10);
+			selector.selectedKeys().clear();
+			ses.processReadyOps();
+		}
+		ses.flush();
+		drain();
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%d producers %10.0f packets/s%n", producers, producers * (long) packets / (elapsed / 1e9));
+	}
+
+	/**
+	 * Usage: SessionBenchmark flush [ticks] [packets per tick] [packet size]
+	 *        SessionBenchmark contention [packets per producer] [batch] [packet size]
+	 *
+	 * flush: prints the write system calls per packet, as counted by
+	 * /proc/thread-self/io, and the packets a second when flushing after every
+	 * packet and when flushing once a tick.
+	 *
+	 * contention: prints the packets a second that 1 to 8 threads get through
+	 * a single session's outbound queue at once, each asking the owner to
+	 * flush after every batch.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String mode = args.length > 0 ? args[0] : "flush";
+		if (mode.equals("flush")) {
+			int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+			int packetsPerTick = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+			int packetSize = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+			if (writeSyscalls() == -1)
+				System.out.println("No /proc/thread-self/io, so no system call counts");
+
+			SessionBenchmark bench = new SessionBenchmark();
+			//warm up
+			bench.flush(ticks / 10, packetsPerTick, packetSize, true);
+			bench.flush(ticks / 10, packetsPerTick, packetSize, false);
+
+			bench.flush(ticks, packetsPerTick, packetSize, true);
+			bench.flush(ticks, packetsPerTick, packetSize, false);
+			bench.close();
+		} else if (mode.equals("contention")) {
+			int packets = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+			int batch = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+			int packetSize = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+			SessionBenchmark bench = new SessionBenchmark();
+			//warm up
+			bench.contention(2, packets / 10, batch, packetSize);
+
+			for (int producers = 1; producers <= 8; producers++)
+				bench.contention(producers, packets, batch, packetSize);
+			bench.close();
+		} else {
+			System.out.println("Usage: SessionBenchmark flush [ticks] [packets per tick] [packet size]");
+			System.out.println("       SessionBenchmark contention [packets per producer] [batch] [packet size]");
+		}
+	}
+}
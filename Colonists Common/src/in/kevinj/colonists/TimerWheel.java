@@ -0,0 +1,103 @@
+package in.kevinj.colonists;
+
+/**
+ * Hashed timer wheel. Scheduling and canceling are O(1), and expiring costs
+ * one slot per elapsed tick no matter how many timeouts are pending. Deadlines
+ * are rounded up to the next tick. Not thread-safe, see
+ * {@link NetworkThread#schedule(Runnable, int)} for use from other threads.
+ */
+public class TimerWheel {
+	public static class Timeout {
+		private final Runnable task;
+		private long deadlineTick;
+		private Timeout prev, next;
+		private int slot;
+
+		/* package-private */ Timeout(Runnable task) {
+			this.task = task;
+			slot = -1;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout[] slots;
+	private final long startTime;
+	private long currentTick;
+	private int pending;
+
+	public TimerWheel(long tickMillis, int slotCount, long now) {
+		this.tickMillis = tickMillis;
+		slots = new Timeout[slotCount];
+		startTime = now;
+	}
+
+	public void add(Timeout timeout, long delayMillis, long now) {
+		assert timeout.slot == -1;
+		long elapsedTicks = (now - startTime + delayMillis + tickMillis - 1) / tickMillis;
+		timeout.deadlineTick = Math.max(elapsedTicks, currentTick);
+		timeout.slot = (int) (timeout.deadlineTick % slots.length);
+		timeout.prev = null;
+		timeout.next = slots[timeout.slot];
+		if (timeout.next != null)
+			timeout.next.prev = timeout;
+		slots[timeout.slot] = timeout;
+		pending++;
+	}
+
+	public void remove(Timeout timeout) {
+		if (timeout.slot == -1)
+			// already ran or removed
+			return;
+
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = timeout.next = null;
+		timeout.slot = -1;
+		pending--;
+	}
+
+	/**
+	 * @return how long to block before calling {@link #expire(long)} again,
+	 * or 0 to block until woken up if nothing is scheduled.
+	 */
+	public long millisUntilNextTick(long now) {
+		if (pending == 0)
+			return 0;
+		return Math.max(1, startTime + currentTick * tickMillis - now);
+	}
+
+	/**
+	 * Runs the task of every timeout whose deadline has passed.
+	 * @return the number of tasks that were run.
+	 */
+	public int expire(long now) {
+		int ran = 0;
+		long lastTick = (now - startTime) / tickMillis;
+		for (; currentTick <= lastTick; currentTick++) {
+			if (pending == 0) {
+				// nothing to do until someone adds a timeout
+				currentTick = lastTick + 1;
+				break;
+			}
+			int slot = (int) (currentTick % slots.length);
+			Timeout timeout = slots[slot];
+			while (timeout != null) {
+				if (timeout.deadlineTick <= currentTick) {
+					remove(timeout);
+					timeout.task.run();
+					ran++;
+					// the task may have removed other timeouts in this slot
+					timeout = slots[slot];
+				} else {
+					// due in a later revolution of the wheel
+					timeout = timeout.next;
+				}
+			}
+		}
+		return ran;
+	}
+}
@@ -1,6 +1,7 @@
 package in.kevinj.colonists;
 
 import in.kevinj.colonists.world.GameMap;
+import in.kevinj.colonists.world.PlayerAction;
 
 //Players will trade request, use year of plenty, or attempt to rob a resource
 //on resources they want but are unlikely to obtain (i.e. few settlements near
@@ -79,8 +80,21 @@ public class TrainerProperties {
 		strategicFactor = 0;
 	}
 
-	public AiPlayer createInstance(GameMap<?> model) {
-		AiPlayer op = new AiPlayer(trainerName);
+	public TrainerProperties(String trainerName, int offensiveFactor, int largestArmyFactor, int observantFactor, int strategicFactor) {
+		this.trainerName = trainerName;
+		this.offensiveFactor = offensiveFactor;
+		this.largestArmyFactor = largestArmyFactor;
+		this.observantFactor = observantFactor;
+		this.strategicFactor = strategicFactor;
+	}
+
+	/**
+	 * @return an AI with this style that plays as player self on model.
+	 * @see AiPlayer#setModel
+	 */
+	public AiPlayer createInstance(GameMap<?> model, int self, PlayerAction.CommitMove<?, ?> commit) {
+		AiPlayer op = new AiPlayer(trainerName, this);
+		op.setModel(model, self, commit);
 		return op;
 	}
 }
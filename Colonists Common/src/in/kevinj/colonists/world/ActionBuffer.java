@@ -0,0 +1,93 @@
+package in.kevinj.colonists.world;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Folds a sequence of actions into the net change it makes. Considering a
+ * tile, vertex or edge only sets a candidate on the map, so for each
+ * coordinate type only the last BeginConsiderMove or EndConsiderMove since
+ * the last drain matters, and nothing at all is left when the candidate ends
+ * up the same as what the receiver already has. Every other action is kept
+ * in order, with the pending considers ahead of it so that the receiver sees
+ * the same candidates when it is applied.
+ */
+public class ActionBuffer {
+	/**
+	 * Pending consider per coordinate type, or null if there is no change.
+	 */
+	private final PlayerAction[] considers;
+	/**
+	 * The candidate the receiver ends up with once it applies everything in
+	 * ordered, per coordinate type.
+	 */
+	private final Coordinate[] shown;
+	private final List<PlayerAction> ordered;
+
+	public ActionBuffer() {
+		considers = new PlayerAction[Coordinate.Type.values().length];
+		shown = new Coordinate[considers.length];
+		ordered = new ArrayList<PlayerAction>();
+	}
+
+	private void foldConsiders() {
+		for (int i = 0; i < considers.length; i++) {
+			PlayerAction move = considers[i];
+			if (move != null) {
+				if (move.getOpcode() == PlayerActionCodec.OP_BEGIN_CONSIDER)
+					shown[i] = ((PlayerAction.BeginConsiderMove) move).getCoordinate();
+				else
+					shown[i] = null;
+				ordered.add(move);
+				considers[i] = null;
+			}
+		}
+	}
+
+	public void add(PlayerAction move) {
+		switch (move.getOpcode()) {
+			case PlayerActionCodec.OP_BEGIN_CONSIDER: {
+				PlayerAction.BeginConsiderMove begin = (PlayerAction.BeginConsiderMove) move;
+				int slot = begin.getCoordinateType().ordinal();
+				considers[slot] = begin.getCoordinate().equals(shown[slot]) ? null : move;
+				break;
+			}
+			case PlayerActionCodec.OP_END_CONSIDER: {
+				int slot = ((PlayerAction.EndConsiderMove) move).getCoordinateType().ordinal();
+				considers[slot] = shown[slot] == null ? null : move;
+				break;
+			}
+			default:
+				foldConsiders();
+				ordered.add(move);
+				break;
+		}
+	}
+
+	public boolean isEmpty() {
+		if (!ordered.isEmpty())
+			return false;
+		for (int i = 0; i < considers.length; i++)
+			if (considers[i] != null)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true if anything other than a consider is waiting, i.e.
+	 * something the receiver shouldn't have to wait for.
+	 */
+	public boolean hasCommitted() {
+		return !ordered.isEmpty();
+	}
+
+	/**
+	 * Moves the net change since the last call to out, oldest first.
+	 */
+	public void drainTo(Collection<? super PlayerAction> out) {
+		foldConsiders();
+		out.addAll(ordered);
+		ordered.clear();
+	}
+}
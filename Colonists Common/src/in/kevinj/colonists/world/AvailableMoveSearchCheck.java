@@ -0,0 +1,253 @@
+package in.kevinj.colonists.world;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Checks GraphUtil.AvailableMoveSearch against the search it replaced, which
+ * is kept here as it was: a HashMap of BitSets, two HashSets and a Stack of
+ * map entries, over the cached adjacency lists and the array grid.
+ */
+public class AvailableMoveSearchCheck {
+	private static void and(Map<Coordinate.NegativeSpace, BitSet> map, Coordinate.NegativeSpace key, int value) {
+		if (value == -1) {
+			BitSet validForPlayers = map.get(key);
+			if (validForPlayers == null)
+				map.put(key, new BitSet(GameMap.NUM_PLAYERS));
+			else
+				validForPlayers.clear();
+		} else {
+			BitSet validForPlayers = map.get(key);
+			if (validForPlayers == null) {
+				validForPlayers = new BitSet(GameMap.NUM_PLAYERS);
+				map.put(key, validForPlayers);
+				validForPlayers.set(value);
+			} else if (!validForPlayers.isEmpty()) {
+				validForPlayers.set(value);
+			}
+		}
+	}
+
+	private static List<Set<Coordinate.NegativeSpace>> makeEmptyList(List<Set<Coordinate.NegativeSpace>> existing) {
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			existing.set(i, Collections.<Coordinate.NegativeSpace>emptySet());
+		return existing;
+	}
+
+	private static List<Set<Coordinate.NegativeSpace>> legacySearch(EntityGrid<?> grid) {
+		List<Set<Coordinate.NegativeSpace>> available = new ArrayList<Set<Coordinate.NegativeSpace>>(GameMap.NUM_PLAYERS);
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			available.add(new CoordinateSet());
+
+		Map<Coordinate.NegativeSpace, BitSet> validVertices = new HashMap<Coordinate.NegativeSpace, BitSet>();
+		Set<Coordinate.NegativeSpace> visitedEdges = new HashSet<Coordinate.NegativeSpace>();
+		Set<Coordinate.NegativeSpace> visitedVertices = new HashSet<Coordinate.NegativeSpace>();
+
+		Stack<Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace>> s = new Stack<Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace>>();
+		Entity.NegativeSpace tmp;
+		for (int id = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.EDGE)); id != Coordinate.NO_ID; id = grid.nextOccupied(id + 1)) {
+			Coordinate.NegativeSpace edge = (Coordinate.NegativeSpace) Coordinate.byId(id);
+			if (visitedEdges.contains(edge))
+				continue;
+
+			visitedEdges.add(edge);
+			s.push(new HashMap.SimpleEntry<Coordinate.NegativeSpace, Entity.NegativeSpace>(edge, grid.get(id)));
+
+			while (!s.isEmpty()) {
+				Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace> edgeEntry = s.pop();
+				edge = edgeEntry.getKey();
+				int player = edgeEntry.getValue().getPlayer();
+
+				List<Coordinate.NegativeSpace> adjVertices = edge.adjacentVertices();
+				boolean vertex0 = grid.isOccupied(adjVertices.get(0));
+				boolean vertex1 = grid.isOccupied(adjVertices.get(1));
+				if (vertex0 && vertex1) {
+					return makeEmptyList(available);
+				} else if (vertex0 || vertex1) {
+					and(validVertices, adjVertices.get(0), -1);
+					and(validVertices, adjVertices.get(1), -1);
+					if (vertex0)
+						visitedVertices.add(adjVertices.get(0));
+					else
+						visitedVertices.add(adjVertices.get(1));
+				} else {
+					and(validVertices, adjVertices.get(0), player);
+					and(validVertices, adjVertices.get(1), player);
+				}
+
+				boolean isOrphaned = true;
+				for (Coordinate.NegativeSpace neighborEdge : edge.adjacentEdges()) {
+					Entity.NegativeSpace neighborEnt = grid.get(neighborEdge);
+					isOrphaned = isOrphaned && (neighborEnt == null);
+					if (neighborEnt == null) {
+						if (neighborEdge.inBounds())
+							if ((tmp = grid.get(Coordinate.NegativeSpace.intersection(edge, neighborEdge))) == null || tmp.getPlayer() == player)
+								available.get(player).add(neighborEdge);
+
+						adjVertices = neighborEdge.adjacentVertices();
+						vertex0 = grid.isOccupied(adjVertices.get(0));
+						vertex1 = grid.isOccupied(adjVertices.get(1));
+						if (vertex0 && vertex1) {
+							return makeEmptyList(available);
+						} else if (vertex0 || vertex1) {
+							and(validVertices, adjVertices.get(0), -1);
+							and(validVertices, adjVertices.get(1), -1);
+						}
+						isOrphaned = isOrphaned && !grid.isOccupied(Coordinate.NegativeSpace.intersection(neighborEdge, edge));
+					} else if (!visitedEdges.contains(neighborEdge)) {
+						visitedEdges.add(neighborEdge);
+						s.push(new HashMap.SimpleEntry<Coordinate.NegativeSpace, Entity.NegativeSpace>(neighborEdge, neighborEnt));
+					}
+				}
+				if (isOrphaned)
+					return makeEmptyList(available);
+			}
+		}
+		int vertexCount = 0;
+		for (int id = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.VERTEX)); id != Coordinate.NO_ID && id < Coordinate.endId(Coordinate.Type.VERTEX); id = grid.nextOccupied(id + 1))
+			vertexCount++;
+		if (visitedVertices.size() < vertexCount)
+			return makeEmptyList(available);
+
+		for (Map.Entry<Coordinate.NegativeSpace, BitSet> validVertex : validVertices.entrySet())
+			if (validVertex.getKey().inBounds())
+				for (int player = validVertex.getValue().nextSetBit(0); player != -1; player = validVertex.getValue().nextSetBit(player + 1))
+					available.get(player).add(validVertex.getKey());
+
+		return available;
+	}
+
+	private static void put(EntityGrid<SimulationMap.Piece> grid, int id, int player) {
+		Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+		grid.put(loc, SimulationMap.getPiece(player, loc.getType() == Coordinate.Type.EDGE ? Entity.Type.ROAD : Entity.Type.VILLAGE));
+	}
+
+	private static int randomId(Random r, Coordinate.Type type) {
+		return Coordinate.firstId(type) + r.nextInt(Coordinate.endInBoundsId(type) - Coordinate.firstId(type));
+	}
+
+	/**
+	 * Every player grows a road from a random vertex, with a village at the
+	 * start most of the time and now and then along the way, so most of
+	 * these boards can't be reached and hit the early exits of the search.
+	 */
+	private static EntityGrid<SimulationMap.Piece> randomBoard(Random r) {
+		EntityGrid<SimulationMap.Piece> grid = new EntityGrid<SimulationMap.Piece>();
+		for (int player = 0; player < GameMap.NUM_PLAYERS; player++) {
+			int vertex = randomId(r, Coordinate.Type.VERTEX);
+			if (r.nextInt(4) != 0)
+				put(grid, vertex, player);
+			int edge = Coordinate.adjacentEdge(vertex, r.nextInt(Coordinate.adjacentEdgeCount(vertex)));
+			for (int length = r.nextInt(8); length > 0 && edge != Coordinate.NO_ID; length--) {
+				if (edge < Coordinate.endInBoundsId(Coordinate.Type.EDGE))
+					put(grid, edge, player);
+				edge = Coordinate.adjacentEdge(edge, r.nextInt(Coordinate.adjacentEdgeCount(edge)));
+				if (r.nextInt(6) == 0 && edge != Coordinate.NO_ID) {
+					vertex = Coordinate.adjacentVertex(edge, r.nextInt(2));
+					if (vertex != Coordinate.NO_ID && vertex < Coordinate.endInBoundsId(Coordinate.Type.VERTEX))
+						put(grid, vertex, player);
+				}
+			}
+		}
+		if (r.nextInt(10) == 0)
+			put(grid, randomId(r, Coordinate.Type.VERTEX), r.nextInt(GameMap.NUM_PLAYERS));
+		return grid;
+	}
+
+	/**
+	 * @return the number of players whose moves differ.
+	 */
+	private static int compare(EntityGrid<?> grid, GraphUtil.AvailableMoveSearch search, CoordinateSet[] available) {
+		List<Set<Coordinate.NegativeSpace>> expected = legacySearch(grid);
+		search.search(grid, available);
+		int mismatches = 0;
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			if (!expected.get(i).equals(available[i]))
+				mismatches++;
+		return mismatches;
+	}
+
+	/**
+	 * Usage: AvailableMoveSearchCheck [random boards] [games] [seed]
+	 *
+	 * Compares both searches on random boards, which are mostly unreachable,
+	 * and on every board of a number of games of random legal moves, then
+	 * times both on the boards from the games. Exits with 1 if they ever
+	 * disagree.
+	 */
+	public static void main(String[] args) {
+		int randomBoards = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int games = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		Random r = new Random(args.length > 2 ? Long.parseLong(args[2]) : 42);
+
+		GraphUtil.AvailableMoveSearch search = new GraphUtil.AvailableMoveSearch();
+		CoordinateSet[] available = new CoordinateSet[GameMap.NUM_PLAYERS];
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			available[i] = new CoordinateSet();
+
+		int mismatches = 0;
+		for (int i = 0; i < randomBoards; i++)
+			mismatches += compare(randomBoard(r), search, available);
+		System.out.println(randomBoards + " random boards, " + mismatches + " mismatches");
+
+		List<EntityGrid<SimulationMap.Piece>> legalBoards = new ArrayList<EntityGrid<SimulationMap.Piece>>();
+		for (int game = 0; game < games; game++) {
+			EntityGrid<SimulationMap.Piece> grid = new EntityGrid<SimulationMap.Piece>();
+			for (int player = 0; player < GameMap.NUM_PLAYERS; player++) {
+				int vertex;
+				do {
+					vertex = randomId(r, Coordinate.Type.VERTEX);
+				} while (grid.isOccupied(vertex) || grid.isOccupied(Coordinate.adjacentVertex(vertex, 0)) || grid.isOccupied(Coordinate.adjacentVertex(vertex, 1)) || grid.isOccupied(Coordinate.adjacentVertex(vertex, 2)));
+				put(grid, vertex, player);
+				int edge;
+				do {
+					edge = Coordinate.adjacentEdge(vertex, r.nextInt(Coordinate.adjacentEdgeCount(vertex)));
+				} while (edge == Coordinate.NO_ID || edge >= Coordinate.endInBoundsId(Coordinate.Type.EDGE));
+				put(grid, edge, player);
+			}
+			for (int step = 0; step < 40; step++) {
+				mismatches += compare(grid, search, available);
+				int player = r.nextInt(GameMap.NUM_PLAYERS);
+				if (available[player].isEmpty())
+					continue;
+				int move = available[player].nextId(0);
+				for (int skip = r.nextInt(available[player].size()); skip > 0; skip--)
+					move = available[player].nextId(move + 1);
+				put(grid, move, player);
+				legalBoards.add(new EntityGrid<SimulationMap.Piece>(grid));
+			}
+		}
+		System.out.println(games + " games, " + legalBoards.size() + " legal boards, " + mismatches + " mismatches in all");
+
+		long legacy = 0, current = 0, sink = 0;
+		for (int pass = 0; pass < 5; pass++) {
+			//the first pass warms up
+			legacy = current = 0;
+			for (int i = 0; i < 10; i++) {
+				long start = System.nanoTime();
+				for (EntityGrid<SimulationMap.Piece> grid : legalBoards)
+					sink += legacySearch(grid).get(0).size();
+				long middle = System.nanoTime();
+				for (EntityGrid<SimulationMap.Piece> grid : legalBoards) {
+					search.search(grid, available);
+					sink += available[0].size();
+				}
+				long end = System.nanoTime();
+				legacy += middle - start;
+				current += end - middle;
+			}
+		}
+		double searches = 10.0 * legalBoards.size();
+		System.out.println(String.format("old %.2f us, new %.2f us per search, %.1fx (%d)", legacy / 1e3 / searches, current / 1e3 / searches, (double) legacy / current, sink));
+		if (mismatches != 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,177 @@
+package in.kevinj.colonists.world;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the incrementally updated available moves against a search from
+ * scratch after the board changes. Only runs when assertions are enabled.
+ * The mode comes from the in.kevinj.colonists.world.verify property: "off",
+ * "async", or N to check every Nth change on the calling thread. The default
+ * is 1, i.e. every change.
+ *
+ * In async mode, the board and the available moves are copied and checked on
+ * a background thread, so a divergence is dumped to stderr and counted instead
+ * of failing the assert. Snapshots are dropped when the thread falls behind.
+ */
+public class ConsistencyCheck {
+	public enum Mode { OFF, SAMPLED, ASYNC }
+
+	private static final int QUEUE_SIZE = 64;
+
+	private static class Snapshot implements Runnable {
+		private final EntityGrid<Entity.NegativeSpace> grid;
+		private final CoordinateSet[] availableMoves;
+		private final int currentPlayerTurn;
+		private final Coordinate.NegativeSpace loc;
+		private final boolean adding;
+
+		public Snapshot(GameMap<?> map, Coordinate.NegativeSpace loc, boolean adding) {
+			this.grid = new EntityGrid<Entity.NegativeSpace>(map.getEntityGrid());
+			this.availableMoves = new CoordinateSet[GameMap.NUM_PLAYERS];
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				availableMoves[i] = new CoordinateSet();
+				availableMoves[i].copyFrom(map.getPlayer(i).availableMoves);
+			}
+			this.currentPlayerTurn = map.getCurrentPlayerTurn();
+			this.loc = loc;
+			this.adding = adding;
+		}
+
+		@Override
+		public void run() {
+			List<Set<Coordinate.NegativeSpace>> correctMoves = GraphUtil.searchForAvailable(grid);
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				if (!availableMoves[i].equals(correctMoves.get(i))) {
+					divergences.incrementAndGet();
+					synchronized (System.err) {
+						dump(grid.asMap(), currentPlayerTurn, loc, adding, correctMoves, Arrays.asList(availableMoves));
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	private static volatile Mode mode;
+	private static volatile int interval;
+	private static final AtomicInteger changes = new AtomicInteger();
+	private static final AtomicInteger divergences = new AtomicInteger();
+	private static final AtomicInteger dropped = new AtomicInteger();
+	private static ThreadPoolExecutor executor;
+
+	static {
+		String prop = System.getProperty("in.kevinj.colonists.world.verify", "1");
+		if (prop.equalsIgnoreCase("off")) {
+			setMode(Mode.OFF, 0);
+		} else if (prop.equalsIgnoreCase("async")) {
+			setMode(Mode.ASYNC, 0);
+		} else {
+			try {
+				setMode(Mode.SAMPLED, Integer.parseInt(prop));
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+				setMode(Mode.SAMPLED, 1);
+			}
+		}
+	}
+
+	private ConsistencyCheck() {
+	}
+
+	/**
+	 * @param interval for SAMPLED, check every interval changes. Ignored for
+	 * other modes.
+	 */
+	public static void setMode(Mode mode, int interval) {
+		if (mode == Mode.SAMPLED && interval <= 0)
+			throw new IllegalArgumentException("interval must be positive");
+		ConsistencyCheck.interval = interval;
+		ConsistencyCheck.mode = mode;
+	}
+
+	public static Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return how many async checks found the available moves to be wrong.
+	 */
+	public static int getDivergenceCount() {
+		return divergences.get();
+	}
+
+	/**
+	 * @return how many async checks were skipped because the background
+	 * thread was behind.
+	 */
+	public static int getDroppedCount() {
+		return dropped.get();
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "consistency-check");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			}, new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					dropped.incrementAndGet();
+				}
+			});
+		}
+		return executor;
+	}
+
+	private static void dump(Map<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> grid, int currentPlayerTurn, Coordinate.NegativeSpace loc, boolean adding,
+			List<Set<Coordinate.NegativeSpace>> exp, List<? extends Set<Coordinate.NegativeSpace>> act) {
+		System.err.println("INCONSISTENCY WHEN " + (adding ? "ADDING " : "REMOVING ") + loc);
+		GameMap.Helper.dumpAvailableMoveDiff(exp, act);
+		GameMap.Helper.dumpMapState(grid, currentPlayerTurn, adding ? "grid.remove(Coordinate.NegativeSpace.valueOf(" + loc.xHundreds() + ", " + loc.yHundreds() + "));" : "");
+	}
+
+	/**
+	 * Call with assert so that it costs nothing when assertions are disabled.
+	 * @return false if the available moves were checked on this thread and
+	 * are wrong.
+	 */
+	/* package-private */ static boolean afterChange(GameMap<?> map, Coordinate.NegativeSpace loc, boolean adding) {
+		switch (mode) {
+			case OFF:
+				return true;
+			case SAMPLED:
+				if (changes.incrementAndGet() % interval != 0)
+					return true;
+				break;
+			case ASYNC:
+				getExecutor().execute(new Snapshot(map, loc, adding));
+				return true;
+		}
+
+		List<Set<Coordinate.NegativeSpace>> correctMoves = GameMap.Helper.availableMovesCleanUpdate(map);
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+			if (!map.getPlayer(i).availableMoves.equals(correctMoves.get(i))) {
+				CoordinateSet[] actual = new CoordinateSet[GameMap.NUM_PLAYERS];
+				for (int j = 0; j < GameMap.NUM_PLAYERS; j++)
+					actual[j] = map.getPlayer(j).availableMoves;
+				dump(map.getGrid(), map.getCurrentPlayerTurn(), loc, adding, correctMoves, Arrays.asList(actual));
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -2,11 +2,11 @@ package in.kevinj.colonists.world;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 public abstract class Coordinate {
@@ -14,14 +14,252 @@ public abstract class Coordinate {
 		TILE, VERTEX, EDGE
 	}
 
+	/**
+	 * The id of coordinates that are too far off the board to have one.
+	 */
+	public static final int NO_ID = -1;
+
+	/**
+	 * Coordinates whose x and y fall in [INTERNED_MIN, INTERNED_MIN +
+	 * INTERNED_SPAN) are all created up front and valueOf looks them up in an
+	 * array, so it never locks or allocates. The range covers the board with
+	 * plenty of margin. Anything outside of it, e.g. where the cursor points
+	 * far off the board, gets a new instance on every call instead, so those
+	 * must be compared with equals().
+	 */
+	private static final int INTERNED_MIN = -4;
+	private static final int INTERNED_SPAN = 16;
+
+	private static final int TILE_STRIDE = 6;
+	private static final int EDGE_STRIDE = 4;
+	private static final int VERTEX_STRIDE = 6;
+
+	/**
+	 * Every in-bounds coordinate and every coordinate adjacent to one gets a
+	 * dense id. Ids are grouped by type, and within a type the in-bounds
+	 * coordinates come first. Adjacency is stored as ids in flat tables with a
+	 * fixed stride per coordinate, and neighbors that have no id are stored as
+	 * NO_ID.
+	 *
+	 * This is built on first use instead of in the initializer of Coordinate,
+	 * which can run before the caches of PositiveSpace and NegativeSpace exist.
+	 */
+	private static class Table {
+		private static final Coordinate[] BY_ID;
+		private static final int[] FIRST_ID;
+		private static final int[] IN_BOUNDS_COUNT;
+		private static final int[] ADJACENT_TILES, ADJACENT_EDGES, ADJACENT_VERTICES;
+		private static final byte[] ADJACENT_TILE_COUNT, ADJACENT_EDGE_COUNT, ADJACENT_VERTEX_COUNT;
+		private static final List<?>[] ADJACENT_TILE_LISTS, ADJACENT_EDGE_LISTS, ADJACENT_VERTEX_LISTS;
+
+		/**
+		 * Goes through Table so that the ids are assigned before they are read.
+		 */
+		private static int idOf(Coordinate coord) {
+			return coord.id;
+		}
+
+		private static void addNeighbors(List<? extends Coordinate> neighbors, List<List<Coordinate>> boundary) {
+			if (neighbors == null)
+				return;
+			for (Coordinate neighbor : neighbors) {
+				List<Coordinate> list = boundary.get(neighbor.getType().ordinal());
+				if (!neighbor.inBounds() && !list.contains(neighbor))
+					list.add(neighbor);
+			}
+		}
+
+		private static <T extends Coordinate> List<?> fill(List<T> neighbors, int id, int stride, int[] ids, byte[] counts) {
+			Arrays.fill(ids, id * stride, id * stride + stride, NO_ID);
+			if (neighbors == null)
+				return null;
+			assert neighbors.size() <= stride;
+			for (int i = 0; i < neighbors.size(); i++)
+				ids[id * stride + i] = ((Coordinate) neighbors.get(i)).id;
+			counts[id] = (byte) neighbors.size();
+			return Collections.unmodifiableList(neighbors);
+		}
+
+		static {
+			Type[] types = Type.values();
+			List<List<Coordinate>> inBounds = new ArrayList<List<Coordinate>>();
+			List<List<Coordinate>> boundary = new ArrayList<List<Coordinate>>();
+			for (int i = 0; i < types.length; i++) {
+				inBounds.add(new ArrayList<Coordinate>());
+				boundary.add(new ArrayList<Coordinate>());
+			}
+
+			for (int x = 0; x < 7; x++)
+				for (int y = 0; y < 7; y++)
+					if (PositiveSpace.valueOf(x, y).inBounds())
+						inBounds.get(Type.TILE.ordinal()).add(PositiveSpace.valueOf(x, y));
+			inBounds.get(Type.VERTEX.ordinal()).addAll(NegativeSpace.allVertices());
+			for (Coordinate vertex : inBounds.get(Type.VERTEX.ordinal()))
+				for (NegativeSpace edge : vertex.computeAdjacentEdges())
+					if (edge.inBounds() && !inBounds.get(Type.EDGE.ordinal()).contains(edge))
+						inBounds.get(Type.EDGE.ordinal()).add(edge);
+			for (List<Coordinate> list : inBounds) {
+				for (Coordinate coord : list) {
+					addNeighbors(coord.computeAdjacentTiles(), boundary);
+					addNeighbors(coord.computeAdjacentEdges(), boundary);
+					addNeighbors(coord.computeAdjacentVertices(), boundary);
+				}
+			}
+
+			FIRST_ID = new int[types.length + 1];
+			IN_BOUNDS_COUNT = new int[types.length];
+			List<Coordinate> all = new ArrayList<Coordinate>();
+			for (int i = 0; i < types.length; i++) {
+				FIRST_ID[i] = all.size();
+				IN_BOUNDS_COUNT[i] = inBounds.get(i).size();
+				Collections.sort(inBounds.get(i), ORDER);
+				Collections.sort(boundary.get(i), ORDER);
+				all.addAll(inBounds.get(i));
+				all.addAll(boundary.get(i));
+			}
+			FIRST_ID[types.length] = all.size();
+			BY_ID = all.toArray(new Coordinate[all.size()]);
+			for (int id = 0; id < BY_ID.length; id++)
+				BY_ID[id].id = id;
+
+			ADJACENT_TILES = new int[BY_ID.length * TILE_STRIDE];
+			ADJACENT_EDGES = new int[BY_ID.length * EDGE_STRIDE];
+			ADJACENT_VERTICES = new int[BY_ID.length * VERTEX_STRIDE];
+			ADJACENT_TILE_COUNT = new byte[BY_ID.length];
+			ADJACENT_EDGE_COUNT = new byte[BY_ID.length];
+			ADJACENT_VERTEX_COUNT = new byte[BY_ID.length];
+			ADJACENT_TILE_LISTS = new List<?>[BY_ID.length];
+			ADJACENT_EDGE_LISTS = new List<?>[BY_ID.length];
+			ADJACENT_VERTEX_LISTS = new List<?>[BY_ID.length];
+			for (int id = 0; id < BY_ID.length; id++) {
+				Coordinate coord = BY_ID[id];
+				ADJACENT_TILE_LISTS[id] = fill(coord.computeAdjacentTiles(), id, TILE_STRIDE, ADJACENT_TILES, ADJACENT_TILE_COUNT);
+				ADJACENT_EDGE_LISTS[id] = fill(coord.computeAdjacentEdges(), id, EDGE_STRIDE, ADJACENT_EDGES, ADJACENT_EDGE_COUNT);
+				ADJACENT_VERTEX_LISTS[id] = fill(coord.computeAdjacentVertices(), id, VERTEX_STRIDE, ADJACENT_VERTICES, ADJACENT_VERTEX_COUNT);
+			}
+		}
+	}
+
+	private static final Comparator<Coordinate> ORDER = new Comparator<Coordinate>() {
+		@Override
+		public int compare(Coordinate a, Coordinate b) {
+			return a.hashCode() - b.hashCode();
+		}
+	};
+
+	private int id = NO_ID;
+
 	public abstract Type getType();
-	public abstract List<PositiveSpace> adjacentTiles();
-	public abstract List<NegativeSpace> adjacentEdges();
-	public abstract List<NegativeSpace> adjacentVertices();
 	public abstract boolean inBounds();
+	/* package-private */ abstract List<PositiveSpace> computeAdjacentTiles();
+	/* package-private */ abstract List<NegativeSpace> computeAdjacentEdges();
+	/* package-private */ abstract List<NegativeSpace> computeAdjacentVertices();
+
+	/**
+	 * @return the dense id of this coordinate, or NO_ID if it is too far off
+	 * the board to have one.
+	 */
+	public int getId() {
+		return Table.idOf(this);
+	}
+
+	/**
+	 * The returned lists are shared and can't be modified.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PositiveSpace> adjacentTiles() {
+		int id = getId();
+		if (id == NO_ID)
+			return computeAdjacentTiles();
+		return (List<PositiveSpace>) Table.ADJACENT_TILE_LISTS[id];
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<NegativeSpace> adjacentEdges() {
+		int id = getId();
+		if (id == NO_ID)
+			return computeAdjacentEdges();
+		return (List<NegativeSpace>) Table.ADJACENT_EDGE_LISTS[id];
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<NegativeSpace> adjacentVertices() {
+		int id = getId();
+		if (id == NO_ID)
+			return computeAdjacentVertices();
+		return (List<NegativeSpace>) Table.ADJACENT_VERTEX_LISTS[id];
+	}
+
+	public static int idCount() {
+		return Table.BY_ID.length;
+	}
+
+	/**
+	 * Ids of coordinates of the given type run from firstId(type) inclusive to
+	 * endId(type) exclusive.
+	 */
+	public static int firstId(Type type) {
+		return Table.FIRST_ID[type.ordinal()];
+	}
+
+	public static int endId(Type type) {
+		return Table.FIRST_ID[type.ordinal() + 1];
+	}
+
+	/**
+	 * The in-bounds coordinates of the given type run from firstId(type)
+	 * inclusive to endInBoundsId(type) exclusive.
+	 */
+	public static int endInBoundsId(Type type) {
+		return Table.FIRST_ID[type.ordinal()] + Table.IN_BOUNDS_COUNT[type.ordinal()];
+	}
+
+	public static Coordinate byId(int id) {
+		return Table.BY_ID[id];
+	}
+
+	public static int adjacentTileCount(int id) {
+		return Table.ADJACENT_TILE_COUNT[id];
+	}
+
+	/**
+	 * @return the id of the i-th tile in adjacentTiles(), or NO_ID.
+	 */
+	public static int adjacentTile(int id, int i) {
+		return Table.ADJACENT_TILES[id * TILE_STRIDE + i];
+	}
+
+	public static int adjacentEdgeCount(int id) {
+		return Table.ADJACENT_EDGE_COUNT[id];
+	}
+
+	/**
+	 * @return the id of the i-th edge in adjacentEdges(), or NO_ID.
+	 */
+	public static int adjacentEdge(int id, int i) {
+		return Table.ADJACENT_EDGES[id * EDGE_STRIDE + i];
+	}
+
+	public static int adjacentVertexCount(int id) {
+		return Table.ADJACENT_VERTEX_COUNT[id];
+	}
+
+	/**
+	 * @return the id of the i-th vertex in adjacentVertices(), or NO_ID.
+	 */
+	public static int adjacentVertex(int id, int i) {
+		return Table.ADJACENT_VERTICES[id * VERTEX_STRIDE + i];
+	}
 
 	public static class PositiveSpace extends Coordinate implements Comparable<PositiveSpace> {
-		private static Map<Short, PositiveSpace> cache = Collections.synchronizedMap(new HashMap<Short, PositiveSpace>());
+		private static final PositiveSpace[] cache;
+
+		static {
+			cache = new PositiveSpace[INTERNED_SPAN * INTERNED_SPAN];
+			for (int x = 0; x < INTERNED_SPAN; x++)
+				for (int y = 0; y < INTERNED_SPAN; y++)
+					cache[x * INTERNED_SPAN + y] = new PositiveSpace(x + INTERNED_MIN, y + INTERNED_MIN);
+		}
 	
 		public byte x, y;
 	
@@ -68,7 +306,7 @@ public abstract class Coordinate {
 		}
 
 		@Override
-		public List<PositiveSpace> adjacentTiles() {
+		/* package-private */ List<PositiveSpace> computeAdjacentTiles() {
 			List<PositiveSpace> list = new ArrayList<PositiveSpace>(6);
 			list.add(valueOf(x + 0, y + 1));
 			list.add(valueOf(x + 1, y + 1));
@@ -80,13 +318,13 @@ public abstract class Coordinate {
 		}
 
 		@Override
-		public List<NegativeSpace> adjacentEdges() {
+		/* package-private */ List<NegativeSpace> computeAdjacentEdges() {
 			List<NegativeSpace> list = null;
 			return list;
 		}
 
 		@Override
-		public List<NegativeSpace> adjacentVertices() {
+		/* package-private */ List<NegativeSpace> computeAdjacentVertices() {
 			List<NegativeSpace> list = new ArrayList<NegativeSpace>(6);
 			list.add(NegativeSpace.valueOf(x * 100 + 0,		y * 100 + 100));
 			list.add(NegativeSpace.valueOf(x * 100 + 100,	y * 100 + 150));
@@ -105,13 +343,10 @@ public abstract class Coordinate {
 		}
 	
 		public static PositiveSpace valueOf(int x, int y) {
-			Short key = Short.valueOf((short) hashCode(x, y));
-			PositiveSpace value = cache.get(key);
-			if (value == null) {
-				value = new PositiveSpace(x, y);
-				cache.put(key, value);
-			}
-			return value;
+			int xIndex = x - INTERNED_MIN, yIndex = y - INTERNED_MIN;
+			if (xIndex < 0 || xIndex >= INTERNED_SPAN || yIndex < 0 || yIndex >= INTERNED_SPAN)
+				return new PositiveSpace(x, y);
+			return cache[xIndex * INTERNED_SPAN + yIndex];
 		}
 	}
 
@@ -126,29 +361,42 @@ public abstract class Coordinate {
 	public static class NegativeSpace extends Coordinate implements Comparable<NegativeSpace> {
 		private static final DecimalFormat FMT = new DecimalFormat("0.00");
 	
-		private static Map<Integer, NegativeSpace> cache = Collections.synchronizedMap(new HashMap<Integer, NegativeSpace>());
+		/**
+		 * Only multiples of 25 hundredths are interned, since nothing else is
+		 * a vertex or an edge.
+		 */
+		private static final int QUARTERS = 4;
+
+		private static final NegativeSpace[] cache;
+
+		static {
+			cache = new NegativeSpace[INTERNED_SPAN * QUARTERS * INTERNED_SPAN * QUARTERS];
+			for (int x = 0; x < INTERNED_SPAN; x++)
+				for (int xQuarter = 0; xQuarter < QUARTERS; xQuarter++)
+					for (int y = 0; y < INTERNED_SPAN; y++)
+						for (int yQuarter = 0; yQuarter < QUARTERS; yQuarter++)
+							cache[((x * QUARTERS + xQuarter) * INTERNED_SPAN + y) * QUARTERS + yQuarter] =
+									new NegativeSpace(x + INTERNED_MIN, xQuarter * 25, y + INTERNED_MIN, yQuarter * 25);
+		}
 
 		public final byte x, y;
 		public final byte xHundredths, yHundredths;
 
-		private NegativeSpace(byte[] xNorm, byte[] yNorm) {
-			this.x = xNorm[0];
-			this.xHundredths = xNorm[1];
-			this.y = yNorm[0];
-			this.yHundredths = yNorm[1];
+		private NegativeSpace(int x, int xHundredths, int y, int yHundredths) {
+			this.x = (byte) x;
+			this.xHundredths = (byte) xHundredths;
+			this.y = (byte) y;
+			this.yHundredths = (byte) yHundredths;
 		}
 
-		private static byte[] normalize(int a, int aHundredths) {
-			if (aHundredths >= 0 && aHundredths < 100)
-				return new byte[] { (byte) a, (byte) aHundredths };
-
-			//make sure aHundreths is not negative
-			a -= 1;
-			aHundredths += 100;
-			//integer division and modulus
-			a += aHundredths / 100;
-			aHundredths %= 100;
-			return new byte[] { (byte) a, (byte) aHundredths };
+		/**
+		 * Rounds toward negative infinity so that the hundredths are never
+		 * negative.
+		 */
+		private static int wholePart(int hundreds) {
+			if (hundreds >= 0)
+				return hundreds / 100;
+			return -((99 - hundreds) / 100);
 		}
 
 		public int xHundreds() {
@@ -169,7 +417,7 @@ public abstract class Coordinate {
 		}
 
 		@Override
-		public List<PositiveSpace> adjacentTiles() {
+		/* package-private */ List<PositiveSpace> computeAdjacentTiles() {
 			List<PositiveSpace> list = null;
 			Type type = getType();
 			if (type == Type.VERTEX) {
@@ -182,7 +430,7 @@ public abstract class Coordinate {
 		}
 
 		@Override
-		public List<NegativeSpace> adjacentEdges() {
+		/* package-private */ List<NegativeSpace> computeAdjacentEdges() {
 			List<NegativeSpace> list = null;
 			Type type = getType();
 			if (type == Type.EDGE) {
@@ -209,7 +457,7 @@ public abstract class Coordinate {
 		}
 
 		@Override
-		public List<NegativeSpace> adjacentVertices() {
+		/* package-private */ List<NegativeSpace> computeAdjacentVertices() {
 			List<NegativeSpace> list = null;
 			Type type = getType();
 			if (type == Type.EDGE) {
@@ -367,19 +615,16 @@ public abstract class Coordinate {
 		}
 
 		public static NegativeSpace valueOf(int x, int xHundredths, int y, int yHundredths) {
-			byte[] xNorm = normalize(x, xHundredths);
-			byte[] yNorm = normalize(y, yHundredths);
-			Integer key = Integer.valueOf(hashCode(xNorm[0], xNorm[1], yNorm[0], yNorm[1]));
-			NegativeSpace value = cache.get(key);
-			if (value == null) {
-				value = new NegativeSpace(xNorm, yNorm);
-				cache.put(key, value);
-			}
-			return value;
+			return valueOf(x * 100 + xHundredths, y * 100 + yHundredths);
 		}
 
 		public static NegativeSpace valueOf(int xHundreds, int yHundreds) {
-			return valueOf(xHundreds / 100, xHundreds % 100, yHundreds / 100, yHundreds % 100);
+			int x = wholePart(xHundreds), y = wholePart(yHundreds);
+			int xHundredths = xHundreds - x * 100, yHundredths = yHundreds - y * 100;
+			int xIndex = x - INTERNED_MIN, yIndex = y - INTERNED_MIN;
+			if (xIndex < 0 || xIndex >= INTERNED_SPAN || yIndex < 0 || yIndex >= INTERNED_SPAN || xHundredths % 25 != 0 || yHundredths % 25 != 0)
+				return new NegativeSpace(x, xHundredths, y, yHundredths);
+			return cache[((xIndex * QUARTERS + xHundredths / 25) * INTERNED_SPAN + yIndex) * QUARTERS + yHundredths / 25];
 		}
 	}
 }
@@ -0,0 +1,263 @@
+package in.kevinj.colonists.world;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmarks of Coordinate against the way it used to work, where every
+ * adjacency call built a new ArrayList, and valueOf normalized into two new
+ * byte arrays and then looked the coordinate up in a synchronized HashMap
+ * with a boxed key. The old way is rebuilt here on top of the interned
+ * coordinates, so both ways return the very same objects.
+ */
+public class CoordinateBenchmark {
+	private static final Map<Short, Coordinate.PositiveSpace> legacyTiles = Collections.synchronizedMap(new HashMap<Short, Coordinate.PositiveSpace>());
+	private static final Map<Integer, Coordinate.NegativeSpace> legacyNegatives = Collections.synchronizedMap(new HashMap<Integer, Coordinate.NegativeSpace>());
+	//keeps the JIT from dropping lookups whose results are never used
+	private static volatile int blackhole;
+
+	private static Coordinate.PositiveSpace legacyValueOf(int x, int y) {
+		Short key = Short.valueOf((short) ((x & 0xFF) << 8 | y & 0xFF));
+		Coordinate.PositiveSpace value = legacyTiles.get(key);
+		if (value == null) {
+			value = Coordinate.PositiveSpace.valueOf(x, y);
+			legacyTiles.put(key, value);
+		}
+		return value;
+	}
+
+	private static byte[] normalize(int a, int aHundredths) {
+		if (aHundredths >= 0 && aHundredths < 100)
+			return new byte[] { (byte) a, (byte) aHundredths };
+
+		a -= 1;
+		aHundredths += 100;
+		a += aHundredths / 100;
+		aHundredths %= 100;
+		return new byte[] { (byte) a, (byte) aHundredths };
+	}
+
+	private static Coordinate.NegativeSpace legacyValueOf(int x, int xHundredths, int y, int yHundredths) {
+		byte[] xNorm = normalize(x, xHundredths);
+		byte[] yNorm = normalize(y, yHundredths);
+		Integer key = Integer.valueOf((xNorm[0] & 0xFF) << 24 | (xNorm[1] & 0xFF) << 16 | (yNorm[0] & 0xFF) << 8 | yNorm[1] & 0xFF);
+		Coordinate.NegativeSpace value = legacyNegatives.get(key);
+		if (value == null) {
+			value = Coordinate.NegativeSpace.valueOf(xNorm[0], xNorm[1], yNorm[0], yNorm[1]);
+			legacyNegatives.put(key, value);
+		}
+		return value;
+	}
+
+	private static List<Coordinate.PositiveSpace> legacyAdjacentTiles(Coordinate.NegativeSpace c) {
+		List<Coordinate.PositiveSpace> list = new ArrayList<Coordinate.PositiveSpace>(3);
+		list.add(legacyValueOf(c.x, (c.y * 100 + c.xHundredths - 50) / 100));
+		list.add(legacyValueOf(c.x - 1, c.y - 1));
+		list.add(legacyValueOf((c.x * 100 - c.xHundredths) / 100, c.y));
+		return list;
+	}
+
+	private static List<Coordinate.NegativeSpace> legacyAdjacentEdges(Coordinate.NegativeSpace c) {
+		List<Coordinate.NegativeSpace> list;
+		if (c.getType() == Coordinate.Type.EDGE) {
+			list = new ArrayList<Coordinate.NegativeSpace>(4);
+			list.add(legacyValueOf(c.x, c.xHundredths - 50, c.y, 25));
+			list.add(legacyValueOf(c.x, 2 * c.xHundredths, c.y, c.yHundredths + 50));
+			list.add(legacyValueOf(c.x, c.xHundredths + 50, c.y, 2 * c.yHundredths - 25));
+			list.add(legacyValueOf(c.x, 0, c.y, c.yHundredths - 50));
+		} else {
+			list = new ArrayList<Coordinate.NegativeSpace>(3);
+			int right = -(int) Math.signum(c.yHundredths - 25);
+			list.add(legacyValueOf(c.x, 0, c.y, c.yHundredths - 25));
+			list.add(legacyValueOf(c.x, c.xHundredths + 50 * right, c.y, c.yHundredths + 25 * right));
+			list.add(legacyValueOf(c.x, c.xHundredths, c.y, c.yHundredths + 25));
+		}
+		return list;
+	}
+
+	private static List<Coordinate.NegativeSpace> legacyAdjacentVertices(Coordinate.NegativeSpace c) {
+		List<Coordinate.NegativeSpace> list;
+		if (c.getType() == Coordinate.Type.EDGE) {
+			list = new ArrayList<Coordinate.NegativeSpace>(2);
+			list.add(legacyValueOf(c.x, (c.xHundredths - 50) / 100 * 100, c.y, c.yHundredths - 25));
+			list.add(legacyValueOf(c.x, (c.xHundredths + 50) / 100 * 100, c.y, c.yHundredths + 25));
+		} else {
+			list = new ArrayList<Coordinate.NegativeSpace>(3);
+			int right = -(int) Math.signum(c.yHundredths - 25);
+			list.add(legacyValueOf(c.x + right, c.xHundredths, c.y, c.yHundredths + 50 * right));
+			list.add(legacyValueOf(c.x, c.xHundredths, c.y, c.yHundredths + 50));
+			list.add(legacyValueOf(c.x, c.xHundredths, c.y, c.yHundredths - 50));
+		}
+		return list;
+	}
+
+	private static int sumIds(List<? extends Coordinate> list) {
+		int sum = 0;
+		for (int i = 0; i < list.size(); i++)
+			sum += list.get(i).getId();
+		return sum;
+	}
+
+	/**
+	 * What GraphUtil and GameMap.Helper do over and over: visit the neighbors
+	 * of every vertex and edge on the board. Sums the ids of the neighbors so
+	 * that the three ways can be checked against each other.
+	 */
+	private static int sweepLegacy() {
+		int sum = 0;
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endInBoundsId(Coordinate.Type.VERTEX); id++) {
+			Coordinate.NegativeSpace c = (Coordinate.NegativeSpace) Coordinate.byId(id);
+			sum += sumIds(legacyAdjacentTiles(c)) + sumIds(legacyAdjacentEdges(c)) + sumIds(legacyAdjacentVertices(c));
+		}
+		for (int id = Coordinate.firstId(Coordinate.Type.EDGE); id < Coordinate.endInBoundsId(Coordinate.Type.EDGE); id++) {
+			Coordinate.NegativeSpace c = (Coordinate.NegativeSpace) Coordinate.byId(id);
+			sum += sumIds(legacyAdjacentEdges(c)) + sumIds(legacyAdjacentVertices(c));
+		}
+		return sum;
+	}
+
+	private static int sweepLists() {
+		int sum = 0;
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endInBoundsId(Coordinate.Type.VERTEX); id++) {
+			Coordinate c = Coordinate.byId(id);
+			sum += sumIds(c.adjacentTiles()) + sumIds(c.adjacentEdges()) + sumIds(c.adjacentVertices());
+		}
+		for (int id = Coordinate.firstId(Coordinate.Type.EDGE); id < Coordinate.endInBoundsId(Coordinate.Type.EDGE); id++) {
+			Coordinate c = Coordinate.byId(id);
+			sum += sumIds(c.adjacentEdges()) + sumIds(c.adjacentVertices());
+		}
+		return sum;
+	}
+
+	private static int sweepIds() {
+		int sum = 0;
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endInBoundsId(Coordinate.Type.VERTEX); id++) {
+			for (int i = Coordinate.adjacentTileCount(id) - 1; i >= 0; i--)
+				sum += Coordinate.adjacentTile(id, i);
+			for (int i = Coordinate.adjacentEdgeCount(id) - 1; i >= 0; i--)
+				sum += Coordinate.adjacentEdge(id, i);
+			for (int i = Coordinate.adjacentVertexCount(id) - 1; i >= 0; i--)
+				sum += Coordinate.adjacentVertex(id, i);
+		}
+		for (int id = Coordinate.firstId(Coordinate.Type.EDGE); id < Coordinate.endInBoundsId(Coordinate.Type.EDGE); id++) {
+			for (int i = Coordinate.adjacentEdgeCount(id) - 1; i >= 0; i--)
+				sum += Coordinate.adjacentEdge(id, i);
+			for (int i = Coordinate.adjacentVertexCount(id) - 1; i >= 0; i--)
+				sum += Coordinate.adjacentVertex(id, i);
+		}
+		return sum;
+	}
+
+	private static int sweep(int way) {
+		switch (way) {
+			case 0:
+				return sweepLegacy();
+			case 1:
+				return sweepLists();
+			default:
+				return sweepIds();
+		}
+	}
+
+	private static void adjacency(int iterations) {
+		String[] names = { "old ArrayLists", "shared lists", "id tables" };
+		int expected = sweepLegacy();
+		for (int way = 0; way < names.length; way++) {
+			if (sweep(way) != expected)
+				throw new IllegalStateException(names[way] + " disagrees with " + names[0]);
+			//warm up
+			for (int i = 0; i < iterations / 10; i++)
+				sweep(way);
+
+			int sink = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += sweep(way);
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("%-14s %10.0f ns/sweep (%d)%n", names[way], elapsed / (double) iterations, sink);
+		}
+	}
+
+	/**
+	 * Looks up every tile and every quarter point of NegativeSpace on and
+	 * around the board, the way hit testing and rendering do.
+	 */
+	private static int intern(boolean legacy) {
+		int sum = 0;
+		for (int x = 0; x < 7; x++) {
+			for (int y = 0; y < 7; y++) {
+				sum += (legacy ? legacyValueOf(x, y) : Coordinate.PositiveSpace.valueOf(x, y)).x;
+				for (int xHundredths = 0; xHundredths < 100; xHundredths += 25)
+					for (int yHundredths = 0; yHundredths < 100; yHundredths += 25)
+						sum += (legacy ? legacyValueOf(x, xHundredths, y, yHundredths) : Coordinate.NegativeSpace.valueOf(x, xHundredths, y, yHundredths)).yHundredths;
+			}
+		}
+		return sum;
+	}
+
+	private static void intern(final int iterations, int threads, final boolean legacy) throws InterruptedException {
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					int sink = 0;
+					for (int j = 0; j < iterations; j++)
+						sink += intern(legacy);
+					blackhole = sink;
+				}
+			});
+			workers[i].start();
+		}
+		long start = System.nanoTime();
+		go.countDown();
+		for (Thread t : workers)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+		//49 tiles and 16 times as many NegativeSpaces a sweep
+		long lookups = (long) threads * iterations * 49 * 17;
+		System.out.printf("%-22s %d threads %12.0f lookups/s%n", legacy ? "synchronized HashMap" : "array", threads, lookups / (elapsed / 1e9));
+	}
+
+	/**
+	 * Usage: CoordinateBenchmark adjacency [iterations]
+	 *        CoordinateBenchmark intern [iterations per thread]
+	 *
+	 * adjacency: prints how long it takes to visit the tiles, edges and
+	 * vertices next to every vertex and edge on the board, the old way, with
+	 * the shared lists of adjacentTiles() etc., and with the id tables.
+	 *
+	 * intern: prints how many valueOf lookups a second 1, 2, 4 and 8 threads
+	 * get through together, with the old synchronized HashMap and with the
+	 * prepopulated array.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		String mode = args.length > 0 ? args[0] : "adjacency";
+		if (mode.equals("adjacency")) {
+			adjacency(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+		} else if (mode.equals("intern")) {
+			int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+			//warm up
+			intern(iterations / 10, 2, true);
+			intern(iterations / 10, 2, false);
+
+			for (int threads = 1; threads <= 8; threads *= 2) {
+				intern(iterations, threads, true);
+				intern(iterations, threads, false);
+			}
+		} else {
+			System.out.println("Usage: CoordinateBenchmark adjacency [iterations]");
+			System.out.println("       CoordinateBenchmark intern [iterations per thread]");
+		}
+	}
+}
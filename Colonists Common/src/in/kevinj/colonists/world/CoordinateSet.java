@@ -0,0 +1,237 @@
+package in.kevinj.colonists.world;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of vertices and edges stored as one bit per coordinate id, so that
+ * adding, removing and testing a coordinate is a single word operation and
+ * whole sets can be combined a word at a time. Only coordinates that have an
+ * id can be added.
+ */
+public class CoordinateSet extends AbstractSet<Coordinate.NegativeSpace> {
+	private final long[] words;
+
+	public CoordinateSet() {
+		words = new long[wordCount()];
+	}
+
+	public CoordinateSet(Collection<? extends Coordinate.NegativeSpace> coords) {
+		this();
+		addAll(coords);
+	}
+
+	/**
+	 * @return the number of words in every set. Bit i of word w is the
+	 * coordinate with id w * 64 + i, and bits past idCount() must stay clear.
+	 */
+	public static int wordCount() {
+		return (Coordinate.idCount() + 63) >>> 6;
+	}
+
+	private static int idOf(Object o) {
+		if (!(o instanceof Coordinate.NegativeSpace))
+			return Coordinate.NO_ID;
+		return ((Coordinate.NegativeSpace) o).getId();
+	}
+
+	public boolean containsId(int id) {
+		return (words[id >>> 6] & 1L << id) != 0;
+	}
+
+	/**
+	 * @return true if the set changed.
+	 */
+	public boolean addId(int id) {
+		long old = words[id >>> 6];
+		words[id >>> 6] = old | 1L << id;
+		return (old & 1L << id) == 0;
+	}
+
+	/**
+	 * @return true if the set changed.
+	 */
+	public boolean removeId(int id) {
+		long old = words[id >>> 6];
+		words[id >>> 6] = old & ~(1L << id);
+		return (old & 1L << id) != 0;
+	}
+
+	/**
+	 * @return the smallest id in the set that is at least from, or NO_ID.
+	 */
+	public int nextId(int from) {
+		int w = from >>> 6;
+		if (w >= words.length)
+			return Coordinate.NO_ID;
+		long word = words[w] & -1L << from;
+		while (word == 0) {
+			if (++w == words.length)
+				return Coordinate.NO_ID;
+			word = words[w];
+		}
+		return w * 64 + Long.numberOfTrailingZeros(word);
+	}
+
+	public long getWord(int w) {
+		return words[w];
+	}
+
+	public void setWord(int w, long word) {
+		words[w] = word;
+	}
+
+	/**
+	 * Adds everything in other.
+	 * @return true if the set changed.
+	 */
+	public boolean or(CoordinateSet other) {
+		boolean changed = false;
+		for (int w = 0; w < words.length; w++) {
+			long old = words[w];
+			words[w] = old | other.words[w];
+			changed |= words[w] != old;
+		}
+		return changed;
+	}
+
+	/**
+	 * Keeps only what is also in other.
+	 * @return true if the set changed.
+	 */
+	public boolean and(CoordinateSet other) {
+		boolean changed = false;
+		for (int w = 0; w < words.length; w++) {
+			long old = words[w];
+			words[w] = old & other.words[w];
+			changed |= words[w] != old;
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes everything in other.
+	 * @return true if the set changed.
+	 */
+	public boolean andNot(CoordinateSet other) {
+		boolean changed = false;
+		for (int w = 0; w < words.length; w++) {
+			long old = words[w];
+			words[w] = old & ~other.words[w];
+			changed |= words[w] != old;
+		}
+		return changed;
+	}
+
+	/**
+	 * Makes this set equal to other.
+	 */
+	public void copyFrom(CoordinateSet other) {
+		System.arraycopy(other.words, 0, words, 0, words.length);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		int id = idOf(o);
+		return id != Coordinate.NO_ID && containsId(id);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if coord has no id.
+	 */
+	@Override
+	public boolean add(Coordinate.NegativeSpace coord) {
+		int id = coord.getId();
+		if (id == Coordinate.NO_ID)
+			throw new IllegalArgumentException(coord + " is too far off the board");
+		return addId(id);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		int id = idOf(o);
+		return id != Coordinate.NO_ID && removeId(id);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Coordinate.NegativeSpace> c) {
+		if (c instanceof CoordinateSet)
+			return or((CoordinateSet) c);
+		return super.addAll(c);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		if (c instanceof CoordinateSet)
+			return andNot((CoordinateSet) c);
+		return super.removeAll(c);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		if (c instanceof CoordinateSet)
+			return and((CoordinateSet) c);
+		return super.retainAll(c);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(words, 0);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (int w = 0; w < words.length; w++)
+			if (words[w] != 0)
+				return false;
+		return true;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (int w = 0; w < words.length; w++)
+			size += Long.bitCount(words[w]);
+		return size;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof CoordinateSet)
+			return Arrays.equals(words, ((CoordinateSet) o).words);
+		return super.equals(o);
+	}
+
+	@Override
+	public Iterator<Coordinate.NegativeSpace> iterator() {
+		return new Iterator<Coordinate.NegativeSpace>() {
+			private int next = nextId(0);
+			private int last = Coordinate.NO_ID;
+
+			@Override
+			public boolean hasNext() {
+				return next != Coordinate.NO_ID;
+			}
+
+			@Override
+			public Coordinate.NegativeSpace next() {
+				if (next == Coordinate.NO_ID)
+					throw new NoSuchElementException();
+				last = next;
+				next = nextId(next + 1);
+				return (Coordinate.NegativeSpace) Coordinate.byId(last);
+			}
+
+			@Override
+			public void remove() {
+				if (last == Coordinate.NO_ID)
+					throw new IllegalStateException();
+				removeId(last);
+				last = Coordinate.NO_ID;
+			}
+		};
+	}
+}
@@ -0,0 +1,226 @@
+package in.kevinj.colonists.world;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The entities on the vertices and edges of the board. They are kept in an
+ * array indexed by coordinate id, next to a byte[] of the players that own
+ * them, so checking whether a neighbor is occupied and by whom is a single
+ * array read. asMap() is a read-only view for callers that want a Map.
+ */
+public class EntityGrid<T extends Entity.NegativeSpace> {
+	public static final int NO_OWNER = -1;
+
+	private class MapView extends AbstractMap<Coordinate.NegativeSpace, T> {
+		private final Set<Map.Entry<Coordinate.NegativeSpace, T>> entrySet = new AbstractSet<Map.Entry<Coordinate.NegativeSpace, T>>() {
+			@Override
+			public Iterator<Map.Entry<Coordinate.NegativeSpace, T>> iterator() {
+				return new Iterator<Map.Entry<Coordinate.NegativeSpace, T>>() {
+					private int next = nextOccupied(0);
+
+					@Override
+					public boolean hasNext() {
+						return next != Coordinate.NO_ID;
+					}
+
+					@Override
+					public Map.Entry<Coordinate.NegativeSpace, T> next() {
+						if (next == Coordinate.NO_ID)
+							throw new NoSuchElementException();
+						int id = next;
+						next = nextOccupied(id + 1);
+						return new AbstractMap.SimpleImmutableEntry<Coordinate.NegativeSpace, T>((Coordinate.NegativeSpace) Coordinate.byId(id), EntityGrid.this.get(id));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+
+		@Override
+		public Set<Map.Entry<Coordinate.NegativeSpace, T>> entrySet() {
+			return entrySet;
+		}
+
+		@Override
+		public T get(Object key) {
+			return EntityGrid.this.get(idOf(key));
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return isOccupied(idOf(key));
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	private final Object[] entities;
+	private final byte[] owners;
+	private final CoordinateSet occupied;
+	private final Map<Coordinate.NegativeSpace, T> view;
+	private int size;
+	private long hash;
+
+	public EntityGrid() {
+		entities = new Object[Coordinate.idCount()];
+		owners = new byte[entities.length];
+		Arrays.fill(owners, (byte) NO_OWNER);
+		occupied = new CoordinateSet();
+		view = new MapView();
+	}
+
+	/**
+	 * Copies what is on the board right now. The entities themselves are
+	 * shared with other.
+	 */
+	public EntityGrid(EntityGrid<? extends T> other) {
+		entities = other.entities.clone();
+		owners = other.owners.clone();
+		occupied = new CoordinateSet();
+		occupied.copyFrom(other.occupied);
+		view = new MapView();
+		size = other.size;
+		hash = other.hash;
+	}
+
+	/**
+	 * Makes this grid hold what other holds, without allocating.
+	 */
+	public void copyFrom(EntityGrid<? extends T> other) {
+		System.arraycopy(other.entities, 0, entities, 0, entities.length);
+		System.arraycopy(other.owners, 0, owners, 0, owners.length);
+		occupied.copyFrom(other.occupied);
+		size = other.size;
+		hash = other.hash;
+	}
+
+	private static int idOf(Object o) {
+		if (!(o instanceof Coordinate.NegativeSpace))
+			return Coordinate.NO_ID;
+		return ((Coordinate.NegativeSpace) o).getId();
+	}
+
+	/**
+	 * @return null if id is NO_ID or nothing is there.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int id) {
+		if (id == Coordinate.NO_ID)
+			return null;
+		return (T) entities[id];
+	}
+
+	/**
+	 * @return null if coord is null or nothing is there.
+	 */
+	public T get(Coordinate.NegativeSpace coord) {
+		return get(idOf(coord));
+	}
+
+	public boolean isOccupied(int id) {
+		return id != Coordinate.NO_ID && owners[id] != NO_OWNER;
+	}
+
+	public boolean isOccupied(Coordinate.NegativeSpace coord) {
+		return isOccupied(idOf(coord));
+	}
+
+	/**
+	 * @return the player whose entity is there, or NO_OWNER.
+	 */
+	public int getOwner(int id) {
+		if (id == Coordinate.NO_ID)
+			return NO_OWNER;
+		return owners[id];
+	}
+
+	public int getOwner(Coordinate.NegativeSpace coord) {
+		return getOwner(idOf(coord));
+	}
+
+	/**
+	 * For word at a time set operations. Must not be modified.
+	 */
+	/* package-private */ CoordinateSet occupied() {
+		return occupied;
+	}
+
+	/**
+	 * @return the smallest occupied id that is at least from, or NO_ID.
+	 */
+	public int nextOccupied(int from) {
+		return occupied.nextId(from);
+	}
+
+	/**
+	 * @return the entity that was there before, or null.
+	 * @throws IllegalArgumentException if coord has no id.
+	 */
+	public T put(Coordinate.NegativeSpace coord, T ent) {
+		int id = coord.getId();
+		if (id == Coordinate.NO_ID)
+			throw new IllegalArgumentException(coord + " is too far off the board");
+		T old = get(id);
+		if (old == null)
+			size++;
+		else
+			hash ^= ZobristHash.piece(id, old.getPlayer(), old.getType());
+		hash ^= ZobristHash.piece(id, ent.getPlayer(), ent.getType());
+		entities[id] = ent;
+		owners[id] = (byte) ent.getPlayer();
+		occupied.addId(id);
+		return old;
+	}
+
+	/**
+	 * @return the entity that was there, or null.
+	 */
+	public T remove(Coordinate.NegativeSpace coord) {
+		int id = idOf(coord);
+		T old = get(id);
+		if (old != null) {
+			size--;
+			hash ^= ZobristHash.piece(id, old.getPlayer(), old.getType());
+			entities[id] = null;
+			owners[id] = NO_OWNER;
+			occupied.removeId(id);
+		}
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the Zobrist hash of every entity's location, owner and type.
+	 */
+	public long getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return a read-only view that follows changes to the grid.
+	 */
+	public Map<Coordinate.NegativeSpace, T> asMap() {
+		return view;
+	}
+}
@@ -2,27 +2,46 @@ package in.kevinj.colonists.world;
 
 import in.kevinj.colonists.Player;
 
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 
 public interface GameMap<T extends Entity.NegativeSpace> {
 	public static final int NUM_PLAYERS = 3;
 
+	/**
+	 * @return a read-only view of getEntityGrid().
+	 */
 	public Map<Coordinate.NegativeSpace, T> getGrid();
+	public EntityGrid<T> getEntityGrid();
 	public T addToGrid(Coordinate.NegativeSpace loc, T ent);
 	public Entity removeFromGrid(Coordinate.NegativeSpace loc);
+	/**
+	 * Puts old back at loc, or empties loc if old is null, for MoveJournal to
+	 * take back a placement. Unlike addToGrid and removeFromGrid, it leaves
+	 * the players' available moves and the turn alone, since the journal
+	 * puts the moves back by itself, but it updates everything else that the
+	 * map keeps about its grid.
+	 * @return the entity that was at loc.
+	 */
+	public T restoreGrid(Coordinate.NegativeSpace loc, T old);
 	public int getCurrentPlayerTurn();
+	/**
+	 * @return a Zobrist hash of the entities on the grid, the highwayman, the
+	 * current turn and the tiles. Equal positions have equal hashes.
+	 */
+	public long getHash();
 	public Player getPlayer(int id);
 	public Entity.PositiveSpace getHighwayman();
+	/**
+	 * @return null if coord is not on the map.
+	 */
+	public MapTile getTile(Coordinate.PositiveSpace coord);
 	public void setHighwaymanCandidate(Coordinate.PositiveSpace coord);
 	public void setRoadCandidate(Coordinate.NegativeSpace coord);
 	public void setMetroCandidate(Coordinate.NegativeSpace coord);
@@ -30,96 +49,172 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 	public void endTurn();
 
 	public static class Helper {
-		public static void initializeMap(MapTile[][] resources, Entity.PositiveSpace highwayman) {
-			Random r = new Random();
+		/**
+		 * Keeps the longest road of every road network on a grid, and of
+		 * every player. A network is the roads of one player that are
+		 * connected without passing through another player's settlement.
+		 * After a change, only the networks that touch it are searched
+		 * again: those of the road's owner around a road, and those of every
+		 * player around a settlement, which can cut a network in two or join
+		 * two of them. Not thread-safe.
+		 */
+		public static class LongestRoadTracker {
+			private final EntityGrid<?> grid;
+			private final GraphUtil.LongestRoadSearch search;
+			//network of every edge, or -1
+			private final int[] networks;
+			//length and owner of every network, where the owner of an unused
+			//one is NO_OWNER
+			private final int[] lengths;
+			private final int[] owners;
+			private final int[] free;
+			private int freeCount;
+
+			private final int[] edges;
+			private final int[] seeds;
+			private final CoordinateSet searched;
 
-			//keystone water tiles only touch a resource tile on one edge (i.e.
-			//corner in the hexagon that the map makes). these keystones exist at
-			//(0, 0), (0, 3), (3, 0), (3, 6), (6, 3), (6, 6). pick a
-			//random one as a reference point to make PortTile.getRandomPorts()
-			//easier to implement.
-			int keystone = r.nextInt(6);
-			int x, y, rot;
-			switch (keystone) {
-				case 0:	x = 3;	y = 0;	rot = 0;	break;
-				case 1:	x = 6;	y = 3;	rot = 60;	break;
-				case 2:	x = 6;	y = 6;	rot = 120;	break;
-				case 3:	x = 3;	y = 6;	rot = 180;	break;
-				case 4:	x = 0;	y = 3;	rot = 240;	break;
-				case 5:	x = 0;	y = 0;	rot = 300;	break;
-				default:	throw new AssertionError("Wrong keystone ID");
+			/**
+			 * Searches every road that is on grid right now.
+			 */
+			public LongestRoadTracker(EntityGrid<?> grid) {
+				this.grid = grid;
+				search = new GraphUtil.LongestRoadSearch();
+				networks = new int[Coordinate.idCount()];
+				Arrays.fill(networks, -1);
+				int capacity = Coordinate.endId(Coordinate.Type.EDGE) - Coordinate.firstId(Coordinate.Type.EDGE);
+				lengths = new int[capacity];
+				owners = new int[capacity];
+				Arrays.fill(owners, EntityGrid.NO_OWNER);
+				free = new int[capacity];
+				for (int i = 0; i < capacity; i++)
+					free[freeCount++] = capacity - 1 - i;
+				edges = new int[capacity];
+				seeds = new int[capacity];
+				searched = new CoordinateSet();
+
+				int count = 0;
+				for (int edge = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.EDGE)); edge != Coordinate.NO_ID; edge = grid.nextOccupied(edge + 1))
+					seeds[count++] = edge;
+				searchNetworks(count);
 			}
-			Queue<MapTile> tiles = new LinkedList<MapTile>();
-			MapTile.PortTile.getRandomPorts(r, rot, tiles);
-			MapTile.ResourceTile.getRandomResources(r, tiles);
-			for (int rad = 3; rad >= 0; --rad) {
-				for (int i = 0; i < Math.max(1, 6 * rad); i++) {
-					resources[y][x] = tiles.poll();
-					if (resources[y][x].isResource() && resources[y][x].getResourceType() == MapTile.ResourceType.WASTELAND)
-						highwayman.setPosition(Coordinate.PositiveSpace.valueOf(x, y));
-					if (y == 3 - rad) {
-						if (x == 3) y++;
-						x++;
-					} else if (y == 3 + rad) {
-						if (x == 3) y--;
-						x--;
-					} else if (x > 3) {
-						if (x != 3 + rad) x++;
-						y++;
-					} else if (x < 3) {
-						if (x != 3 - rad) x--;
-						y--;
+
+			private void release(int network) {
+				if (network != -1 && owners[network] != EntityGrid.NO_OWNER) {
+					owners[network] = EntityGrid.NO_OWNER;
+					free[freeCount++] = network;
+				}
+			}
+
+			/**
+			 * Searches the networks of the first count seeds again, once each.
+			 * Their old networks must have been released.
+			 */
+			private void searchNetworks(int count) {
+				searched.clear();
+				for (int i = 0; i < count; i++) {
+					if (searched.containsId(seeds[i]))
+						continue;
+					int size = search.component(grid, seeds[i], edges);
+					int network = free[--freeCount];
+					for (int j = 0; j < size; j++) {
+						networks[edges[j]] = network;
+						searched.addId(edges[j]);
 					}
+					owners[network] = grid.getOwner(seeds[i]);
+					lengths[network] = search.longest(grid, edges, size);
 				}
-				if (y == 3 - rad) {
-					if (x != 3) x++;
-					y++;
-				} else if (y == 3 + rad) {
-					if (x != 3) x--;
-					y--;
-				} else if (x == 3 - rad) {
-					x++;
-				} else if (x == 3 + rad) {
-					x--;
+			}
+
+			/**
+			 * Call after anything was added to or removed from loc.
+			 */
+			public void update(Coordinate.NegativeSpace loc) {
+				int id = loc.getId();
+				int count = 0;
+				if (loc.getType() == Coordinate.Type.EDGE) {
+					int oldOwner = networks[id] == -1 ? EntityGrid.NO_OWNER : owners[networks[id]];
+					int newOwner = grid.getOwner(id);
+					release(networks[id]);
+					networks[id] = -1;
+					if (newOwner != EntityGrid.NO_OWNER)
+						seeds[count++] = id;
+					//the networks that the road joined or that losing it split
+					for (int i = Coordinate.adjacentEdgeCount(id) - 1; i >= 0; i--) {
+						int neighborEdge = Coordinate.adjacentEdge(id, i);
+						int owner = grid.getOwner(neighborEdge);
+						if (owner != EntityGrid.NO_OWNER && (owner == oldOwner || owner == newOwner))
+							seeds[count++] = neighborEdge;
+					}
+				} else {
+					//the networks that a settlement cuts or that lose a cut
+					for (int i = Coordinate.adjacentEdgeCount(id) - 1; i >= 0; i--) {
+						int edge = Coordinate.adjacentEdge(id, i);
+						if (grid.isOccupied(edge))
+							seeds[count++] = edge;
+					}
 				}
+				for (int i = 0; i < count; i++)
+					release(networks[seeds[i]]);
+				searchNetworks(count);
+			}
+
+			/**
+			 * @return the length of the longest road through the road on edge,
+			 * or 0 if there is none.
+			 */
+			public int getNetworkLength(Coordinate.NegativeSpace edge) {
+				int network = networks[edge.getId()];
+				return network == -1 ? 0 : lengths[network];
+			}
+
+			/**
+			 * @return the length of the player's longest road.
+			 */
+			public int getLongestRoad(int player) {
+				int longest = 0;
+				for (int i = 0; i < owners.length; i++)
+					if (owners[i] == player)
+						longest = Math.max(longest, lengths[i]);
+				return longest;
 			}
 		}
 
-		public static List<Set<Coordinate.NegativeSpace>> availableMovesCleanUpdate(GameMap<?> map) {
-			Map<Coordinate.NegativeSpace, Entity.NegativeSpace> currentPlayerSettlements = new HashMap<Coordinate.NegativeSpace, Entity.NegativeSpace>();
-			Map<Coordinate.NegativeSpace, Entity.NegativeSpace> currentPlayerRoads = new HashMap<Coordinate.NegativeSpace, Entity.NegativeSpace>();
-			for (Map.Entry<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> entry: map.getGrid().entrySet()) {
-				if (entry.getKey().getType() == Coordinate.Type.EDGE)
-					currentPlayerRoads.put(entry.getKey(), entry.getValue());
-				else
-					currentPlayerSettlements.put(entry.getKey(), entry.getValue());
+		//MapGenerator keeps scratch space between maps but isn't thread-safe
+		private static final ThreadLocal<MapGenerator> generators = new ThreadLocal<MapGenerator>() {
+			@Override
+			protected MapGenerator initialValue() {
+				return new MapGenerator();
 			}
-			currentPlayerSettlements = Collections.unmodifiableMap(currentPlayerSettlements);
-			currentPlayerRoads = Collections.unmodifiableMap(currentPlayerRoads);
-			return GraphUtil.searchForAvailable(currentPlayerSettlements, currentPlayerRoads);
+		};
+
+		public static void initializeMap(MapTile[][] resources, Entity.PositiveSpace highwayman) {
+			initializeMap(resources, highwayman, new Random());
 		}
 
-		private static boolean isConsistent(GameMap<?> map) {
-			List<Set<Coordinate.NegativeSpace>> correctMoves = availableMovesCleanUpdate(map);
-			for (int i = 0; i < NUM_PLAYERS; i++)
-				if (!map.getPlayer(i).availableMoves.equals(correctMoves.get(i)))
-					return false;
-			return true;
+		/**
+		 * @param r the same seed always makes the same map.
+		 */
+		public static void initializeMap(MapTile[][] resources, Entity.PositiveSpace highwayman, Random r) {
+			highwayman.setPosition(generators.get().generate(r, resources));
+		}
+
+		public static List<Set<Coordinate.NegativeSpace>> availableMovesCleanUpdate(GameMap<?> map) {
+			return GraphUtil.searchForAvailable(map.getEntityGrid());
 		}
 
-		private static void dumpAvailableMoveDiff(GameMap<?> map) {
-			List<Set<Coordinate.NegativeSpace>> exp = availableMovesCleanUpdate(map);
+		/* package-private */ static void dumpAvailableMoveDiff(List<Set<Coordinate.NegativeSpace>> exp, List<? extends Set<Coordinate.NegativeSpace>> act) {
 			for (int i = 0; i < NUM_PLAYERS; i++) {
-				if (exp.get(i).equals(map.getPlayer(i).availableMoves)) {
+				if (exp.get(i).equals(act.get(i))) {
 					System.err.println("EQU " + i + ": " + exp.get(i));
 				} else {
 					System.err.println("EXP " + i + ": " + exp.get(i));
-					System.err.println("ACT " + i + ": " + map.getPlayer(i).availableMoves);
+					System.err.println("ACT " + i + ": " + act.get(i));
 					Set<Coordinate.NegativeSpace> diff = new HashSet<Coordinate.NegativeSpace>(exp.get(i));
-					diff.removeAll(map.getPlayer(i).availableMoves);
+					diff.removeAll(act.get(i));
 					if (!diff.isEmpty())
 						System.err.println("MIS " + i + ": " + diff);
-					diff = new HashSet<Coordinate.NegativeSpace>(map.getPlayer(i).availableMoves);
+					diff = new HashSet<Coordinate.NegativeSpace>(act.get(i));
 					diff.removeAll(exp.get(i));
 					if (!diff.isEmpty())
 						System.err.println("EXT " + i + ": " + diff);
@@ -127,19 +222,18 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 			}
 		}
 
-		private static void dumpMapState(GameMap<?> map, Coordinate.NegativeSpace loc, String additionalLine) {
-			Map<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> grid = map.getGrid();
+		/* package-private */ static void dumpMapState(Map<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> grid, int currentPlayerTurn, String additionalLine) {
 			for (Map.Entry<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> entry : grid.entrySet())
 				if (entry.getKey().getType() == Coordinate.Type.EDGE)
 					System.err.println("grid.put(Coordinate.NegativeSpace.valueOf(" + entry.getKey().xHundreds() + ", " + entry.getKey()	.yHundreds() + "), new GraphicalEntity.Road(this, " + entry.getValue().getPlayer() + "));");
 				else
 					System.err.println("grid.put(Coordinate.NegativeSpace.valueOf(" + entry.getKey().xHundreds() + ", " + entry.getKey().yHundreds() + "), new GraphicalEntity.Metro(this, " + entry.getValue().getPlayer() + "));");
 			System.err.println(additionalLine);
-			System.err.println("currentPlayerTurn = " + map.getCurrentPlayerTurn() + "; for (Map.Entry<Coordinate.NegativeSpace, GraphicalEntity.NegativeSpace> entry : grid.entrySet()) entry.getValue().setPosition(entry.getKey()); java.util.List<java.util.Set<Coordinate.NegativeSpace>> initialAvailableMoves = GameMap.Helper.availableMovesCleanUpdate(this); for (int i = 0; i < NUM_PLAYERS; i++) { initializeGridStages[i] = 5; players[i].availableMoves.clear(); players[i].availableMoves.addAll(initialAvailableMoves.get(i)); }");
+			System.err.println("currentPlayerTurn = " + currentPlayerTurn + "; for (Map.Entry<Coordinate.NegativeSpace, GraphicalEntity.NegativeSpace> entry : grid.entrySet()) entry.getValue().setPosition(entry.getKey()); java.util.List<java.util.Set<Coordinate.NegativeSpace>> initialAvailableMoves = GameMap.Helper.availableMovesCleanUpdate(this); for (int i = 0; i < NUM_PLAYERS; i++) { initializeGridStages[i] = 5; players[i].availableMoves.clear(); players[i].availableMoves.addAll(initialAvailableMoves.get(i)); }");
 		}
 
 		public static Integer initialAddToGrid(GameMap<?> map, Coordinate.NegativeSpace loc, int playerNum, int stage, Set<Coordinate.NegativeSpace> availableVertices) {
-			Map<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> grid = map.getGrid();
+			EntityGrid<?> grid = map.getEntityGrid();
 			Player player = map.getPlayer(playerNum);
 			switch (stage) {
 				case 0: //before placing first village
@@ -163,7 +257,7 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 
 					//assign to available the set of all empty, in-bounds edges leading out of loc
 					for (Coordinate.NegativeSpace edge : loc.adjacentEdges())
-						if (edge.inBounds() && !grid.containsKey(edge))
+						if (edge.inBounds() && !grid.isOccupied(edge))
 							player.availableMoves.add(edge);
 					//make sure others can't pick this vertex or adjacent vertices
 					List<Coordinate.NegativeSpace> neighbors = loc.adjacentVertices();
@@ -201,26 +295,26 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 		}
 
 		public static void incrementalUpdateAfterAddToGrid(GameMap<?> map, Coordinate.NegativeSpace loc, Entity.NegativeSpace added) {
-			Map<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> grid = map.getGrid();
+			EntityGrid<?> grid = map.getEntityGrid();
 			Entity.NegativeSpace tmp, neighborSquaredEnt;
 			for (int i = 0; i < NUM_PLAYERS; i++)
 				map.getPlayer(i).availableMoves.remove(loc);
 			boolean isOrphaned = true, isSettlementError = false;
 			if (loc.getType() == Coordinate.Type.EDGE) {
 				for (Coordinate.NegativeSpace neighbor : loc.adjacentEdges())
-					if (grid.containsKey(neighbor))
+					if (grid.isOccupied(neighbor))
 						isOrphaned = false;
 					else if (neighbor.inBounds())
 						//can't build a road through another user's settlement
 						if ((tmp = grid.get(Coordinate.NegativeSpace.intersection(loc, neighbor))) == null || tmp.getPlayer() == added.getPlayer())
 							map.getPlayer(added.getPlayer()).availableMoves.add(neighbor);
 				for (Coordinate.NegativeSpace neighbor : loc.adjacentVertices()) {
-					if (grid.containsKey(neighbor)) {
+					if (grid.isOccupied(neighbor)) {
 						isOrphaned = false;
 					} else if (neighbor.inBounds()) {
 						boolean good = true;
 						for (Coordinate.NegativeSpace neighborSquared : neighbor.adjacentVertices()) {
-							if (grid.containsKey(neighborSquared)) {
+							if (grid.isOccupied(neighborSquared)) {
 								good = false;
 								break;
 							}
@@ -232,7 +326,7 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 			} else {
 				BitSet connectedTo = new BitSet(NUM_PLAYERS);
 				for (Coordinate.NegativeSpace edge : loc.adjacentEdges()) {
-					if (grid.containsKey(edge)) {
+					if (grid.isOccupied(edge)) {
 						isOrphaned = false;
 					} else if (edge.inBounds()) {
 						connectedTo.clear();
@@ -252,7 +346,7 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 					}
 				}
 				for (Coordinate.NegativeSpace neighbor : loc.adjacentVertices())
-					if (grid.containsKey(neighbor))
+					if (grid.isOccupied(neighbor))
 						isSettlementError = true;
 					else for (int i = 0; i < NUM_PLAYERS; i++)
 						map.getPlayer(i).availableMoves.remove(neighbor);
@@ -261,18 +355,11 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 				//graph is invalid
 				for (int i = 0; i < NUM_PLAYERS; i++)
 					map.getPlayer(i).availableMoves.clear();
-			try {
-				assert isConsistent(map);
-			} catch (AssertionError e) {
-				System.err.println("INCONSISTENCY WHEN ADDING " + loc);
-				dumpAvailableMoveDiff(map);
-				dumpMapState(map, loc, "grid.remove(Coordinate.NegativeSpace.valueOf(" + loc.xHundreds() + ", " + loc.yHundreds() + "));");
-				throw e;
-			}
+			assert ConsistencyCheck.afterChange(map, loc, true);
 		}
 
 		public static void incrementalUpdateAfterRemoveFromGrid(GameMap<?> map, Coordinate.NegativeSpace loc, Entity.NegativeSpace removed) {
-			Map<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> grid = map.getGrid();
+			EntityGrid<?> grid = map.getEntityGrid();
 			Entity.NegativeSpace tmp, neighborEnt;
 			BitSet connectedTo = new BitSet(NUM_PLAYERS);
 			boolean isOrphaned = false;
@@ -402,7 +489,7 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 					}
 					//if neighboring vertex is adjacent to another vertex, move is invalid
 					for (Coordinate.NegativeSpace otherVertex : neighbor.adjacentVertices()) {
-						if (grid.containsKey(otherVertex)) {
+						if (grid.isOccupied(otherVertex)) {
 							connectedTo.clear();
 							break;
 						}
@@ -411,14 +498,7 @@ public interface GameMap<T extends Entity.NegativeSpace> {
 						map.getPlayer(player).availableMoves.add(neighbor);
 				}
 			}
-			try {
-				assert isConsistent(map);
-			} catch (AssertionError e) {
-				System.err.println("INCONSISTENCY WHEN REMOVING " + loc);
-				dumpAvailableMoveDiff(map);
-				dumpMapState(map, loc, "");
-				throw e;
-			}
+			assert ConsistencyCheck.afterChange(map, loc, false);
 		}
 	}
 }
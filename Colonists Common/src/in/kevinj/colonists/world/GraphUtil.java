@@ -1,166 +1,314 @@
 package in.kevinj.colonists.world;
 
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 
 public class GraphUtil {
-	private static class SimpleEntry<K, V> implements Map.Entry<K, V> {
-		private final K key;
-		private V value;
+	/**
+	 * @return the vertex that the two adjacent edges share.
+	 */
+	private static int intersection(int edge1, int edge2) {
+		int vertex = Coordinate.adjacentVertex(edge1, 0);
+		if (vertex == Coordinate.adjacentVertex(edge2, 0) || vertex == Coordinate.adjacentVertex(edge2, 1))
+			return vertex;
+		return Coordinate.adjacentVertex(edge1, 1);
+	}
 
-		public SimpleEntry(K key, V value) {
-			this.key = key;
-			this.value = value;
-		}
+	/**
+	 * @return the vertex at the other end of edge from vertex.
+	 */
+	private static int otherEnd(int edge, int vertex) {
+		int other = Coordinate.adjacentVertex(edge, 0);
+		return other != vertex ? other : Coordinate.adjacentVertex(edge, 1);
+	}
 
-		@Override
-		public K getKey() {
-			return key;
+	/**
+	 * Finds every move each player can make on a board from scratch. It works
+	 * out the same moves as a depth first search over the road networks
+	 * would, but only needs a pass over the roads and another over the
+	 * settlements, after which the moves come out of a few word operations
+	 * on CoordinateSets:
+	 * - a road can be built on any free edge at an end of one of the
+	 *   player's roads, unless another player's settlement is at that end;
+	 * - a settlement can be built on any end of one of the player's roads
+	 *   that is neither taken nor next to a settlement.
+	 * It keeps its scratch space between calls, so it allocates nothing and
+	 * is cheap enough to run on every node of an AI search. Not thread-safe,
+	 * so use one per thread.
+	 */
+	public static class AvailableMoveSearch {
+		/**
+		 * The edges that meet at each vertex, by vertex id.
+		 */
+		private static final CoordinateSet[] EDGES_AT;
+		private static final CoordinateSet IN_BOUNDS_EDGES, IN_BOUNDS_VERTICES;
+
+		static {
+			EDGES_AT = new CoordinateSet[Coordinate.endId(Coordinate.Type.VERTEX)];
+			for (int vertex = Coordinate.firstId(Coordinate.Type.VERTEX); vertex < EDGES_AT.length; vertex++) {
+				EDGES_AT[vertex] = new CoordinateSet();
+				for (int i = Coordinate.adjacentEdgeCount(vertex) - 1; i >= 0; i--)
+					if (Coordinate.adjacentEdge(vertex, i) != Coordinate.NO_ID)
+						EDGES_AT[vertex].addId(Coordinate.adjacentEdge(vertex, i));
+			}
+			IN_BOUNDS_EDGES = new CoordinateSet();
+			for (int edge = Coordinate.firstId(Coordinate.Type.EDGE); edge < Coordinate.endInBoundsId(Coordinate.Type.EDGE); edge++)
+				IN_BOUNDS_EDGES.addId(edge);
+			IN_BOUNDS_VERTICES = new CoordinateSet();
+			for (int vertex = Coordinate.firstId(Coordinate.Type.VERTEX); vertex < Coordinate.endInBoundsId(Coordinate.Type.VERTEX); vertex++)
+				IN_BOUNDS_VERTICES.addId(vertex);
 		}
 
-		@Override
-		public V getValue() {
-			return value;
+		/**
+		 * Per player, the ends of their roads, and the ends that they can
+		 * build roads from, i.e. that have no other player's settlement.
+		 */
+		private final CoordinateSet[] roadEnds, openEnds;
+		/**
+		 * The ends of everyone's roads.
+		 */
+		private final CoordinateSet allRoadEnds;
+		/**
+		 * Settlements and the vertices next to them.
+		 */
+		private final CoordinateSet blocked;
+
+		public AvailableMoveSearch() {
+			roadEnds = new CoordinateSet[GameMap.NUM_PLAYERS];
+			openEnds = new CoordinateSet[GameMap.NUM_PLAYERS];
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				roadEnds[i] = new CoordinateSet();
+				openEnds[i] = new CoordinateSet();
+			}
+			allRoadEnds = new CoordinateSet();
+			blocked = new CoordinateSet();
 		}
 
-		@Override
-		public V setValue(V value) {
-			V old = this.value;
-			this.value = value;
-			return old;
+		private static boolean clear(CoordinateSet[] available) {
+			for (int i = 0; i < available.length; i++)
+				available[i].clear();
+			return false;
 		}
-	}
 
-	private static void and(Map<Coordinate.NegativeSpace, BitSet> map, Coordinate.NegativeSpace key, int value) {
-		if (value == -1) {
-			BitSet validForPlayers = map.get(key);
-			if (validForPlayers == null)
-				map.put(key, new BitSet(GameMap.NUM_PLAYERS));
-			else
-				validForPlayers.clear();
-		} else {
-			BitSet validForPlayers = map.get(key);
-			if (validForPlayers == null) {
-				validForPlayers = new BitSet(GameMap.NUM_PLAYERS);
-				map.put(key, validForPlayers);
-				validForPlayers.set(value);
-			} else if (!validForPlayers.isEmpty()) {
-				validForPlayers.set(value);
+		/**
+		 * Every occupied coordinate must be in bounds.
+		 * @param available one set per player, which are overwritten with the
+		 * moves of that player.
+		 * @return false if the board is in a state that can't be reached, in
+		 * which case nobody has any moves.
+		 */
+		public boolean search(EntityGrid<?> grid, CoordinateSet[] available) {
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				roadEnds[i].clear();
+				openEnds[i].clear();
+			}
+			allRoadEnds.clear();
+			blocked.clear();
+
+			for (int edge = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.EDGE)); edge != Coordinate.NO_ID; edge = grid.nextOccupied(edge + 1)) {
+				int player = grid.getOwner(edge);
+				int vertex0 = Coordinate.adjacentVertex(edge, 0);
+				int vertex1 = Coordinate.adjacentVertex(edge, 1);
+				int owner0 = grid.getOwner(vertex0);
+				int owner1 = grid.getOwner(vertex1);
+				if (owner0 == EntityGrid.NO_OWNER && owner1 == EntityGrid.NO_OWNER) {
+					boolean isOrphaned = true;
+					for (int i = Coordinate.adjacentEdgeCount(edge) - 1; i >= 0 && isOrphaned; i--)
+						isOrphaned = !grid.isOccupied(Coordinate.adjacentEdge(edge, i));
+					if (isOrphaned)
+						//edge without an adjacent edge or vertex
+						return clear(available);
+				}
+
+				if (vertex0 != Coordinate.NO_ID) {
+					roadEnds[player].addId(vertex0);
+					//can't build a road through another user's settlement
+					if (owner0 == EntityGrid.NO_OWNER || owner0 == player)
+						openEnds[player].addId(vertex0);
+				}
+				if (vertex1 != Coordinate.NO_ID) {
+					roadEnds[player].addId(vertex1);
+					if (owner1 == EntityGrid.NO_OWNER || owner1 == player)
+						openEnds[player].addId(vertex1);
+				}
+			}
+
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+				allRoadEnds.or(roadEnds[i]);
+			for (int vertex = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.VERTEX)); vertex != Coordinate.NO_ID && vertex < Coordinate.endId(Coordinate.Type.VERTEX); vertex = grid.nextOccupied(vertex + 1)) {
+				if (!allRoadEnds.containsId(vertex))
+					//vertex without an adjacent edge
+					return clear(available);
+
+				blocked.addId(vertex);
+				for (int i = Coordinate.adjacentVertexCount(vertex) - 1; i >= 0; i--) {
+					int neighbor = Coordinate.adjacentVertex(vertex, i);
+					if (neighbor == Coordinate.NO_ID)
+						continue;
+					if (grid.isOccupied(neighbor))
+						//settlement next to another settlement
+						return clear(available);
+					blocked.addId(neighbor);
+				}
+			}
+
+			CoordinateSet occupied = grid.occupied();
+			for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+				CoordinateSet moves = available[i];
+				moves.clear();
+				for (int vertex = openEnds[i].nextId(0); vertex != Coordinate.NO_ID; vertex = openEnds[i].nextId(vertex + 1))
+					moves.or(EDGES_AT[vertex]);
+				moves.andNot(occupied);
+				moves.and(IN_BOUNDS_EDGES);
+
+				roadEnds[i].andNot(blocked);
+				roadEnds[i].and(IN_BOUNDS_VERTICES);
+				moves.or(roadEnds[i]);
 			}
+			return true;
 		}
 	}
 
-	private static List<Set<Coordinate.NegativeSpace>> makeEmptyList(List<Set<Coordinate.NegativeSpace>> existing) {
-		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
-			existing.set(i, Collections.<Coordinate.NegativeSpace>emptySet());
-		return existing;
-	}
+	/**
+	 * Finds the roads that make up a player's road network and the longest
+	 * road in it, i.e. the longest trail of that player's roads that uses no
+	 * road twice and doesn't pass through another player's settlement. The
+	 * longest road is found by a depth first search from every place that it
+	 * could start, which takes exponential time in the worst case, but the
+	 * 15 roads that a player has are searched in microseconds. Keeps its
+	 * scratch space between calls. Not thread-safe, so use one per thread.
+	 */
+	public static class LongestRoadSearch {
+		private final int[] stack;
+		private final CoordinateSet visited;
+		private final CoordinateSet used;
+		private final CoordinateSet network;
+		private EntityGrid<?> grid;
+		private int player;
+		private int bound, best;
 
-	public static List<Set<Coordinate.NegativeSpace>> searchForAvailable(Map<Coordinate.NegativeSpace, Entity.NegativeSpace> vertices, Map<Coordinate.NegativeSpace, Entity.NegativeSpace> edges) {
-		List<Set<Coordinate.NegativeSpace>> available = new ArrayList<Set<Coordinate.NegativeSpace>>(GameMap.NUM_PLAYERS);
-		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
-			available.add(new HashSet<Coordinate.NegativeSpace>());
-
-		//could use a BitSet too since integral values are in [0, 6]
-		Map<Coordinate.NegativeSpace, BitSet> validVertices = new HashMap<Coordinate.NegativeSpace, BitSet>();
-		Set<Coordinate.NegativeSpace> visitedEdges = new HashSet<Coordinate.NegativeSpace>();
-		Set<Coordinate.NegativeSpace> visitedVertices = new HashSet<Coordinate.NegativeSpace>();
-
-		//highly confusing, but we're performing a depth first search on a graph
-		//whose vertices are our map's "edges" and whose edges are our map's
-		//"edges" and "vertices"
-		Stack<Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace>> s = new Stack<Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace>>();
-		Entity.NegativeSpace tmp;
-		//graph can be disconnected, so loop over all of our map's "edges" to
-		//get our roots
-		for (Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace> sourceEdgeEntry : edges.entrySet()) {
-			Coordinate.NegativeSpace edge = sourceEdgeEntry.getKey();
-			if (visitedEdges.contains(edge))
-				continue;
-
-			visitedEdges.add(edge);
-			s.push(sourceEdgeEntry);
-
-			while (!s.isEmpty()) {
-				Map.Entry<Coordinate.NegativeSpace, Entity.NegativeSpace> edgeEntry = s.pop();
-				edge = edgeEntry.getKey();
-				int player = edgeEntry.getValue().getPlayer();
-
-				List<Coordinate.NegativeSpace> adjVertices = edge.adjacentVertices();
-				assert adjVertices.size() == 2;
-				boolean vertex0 = vertices.containsKey(adjVertices.get(0));
-				boolean vertex1 = vertices.containsKey(adjVertices.get(1));
-				if (vertex0 && vertex1) {
-					//settlement next to another settlement
-					return makeEmptyList(available);
-				} else if (vertex0 || vertex1) {
-					//if one "vertex" contains a settlement, neither "vertex"
-					//can accommodate another settlement
-					and(validVertices, adjVertices.get(0), -1);
-					and(validVertices, adjVertices.get(1), -1);
-					//keep track of settlement-containing "vertices" we visited
-					if (vertex0)
-						visitedVertices.add(adjVertices.get(0));
-					else
-						visitedVertices.add(adjVertices.get(1));
-				} else {
-					//neither "vertex" contains a settlement. tentatively say
-					//both "vertices" can accommodate a settlement until we are
-					//proved wrong by a second visit on the "vertex"
-					and(validVertices, adjVertices.get(0), player);
-					and(validVertices, adjVertices.get(1), player);
+		public LongestRoadSearch() {
+			stack = new int[Coordinate.endId(Coordinate.Type.EDGE) - Coordinate.firstId(Coordinate.Type.EDGE)];
+			visited = new CoordinateSet();
+			used = new CoordinateSet();
+			network = new CoordinateSet();
+		}
+
+		/**
+		 * @return true if a road of the player can go on through vertex.
+		 */
+		private boolean passable(int vertex) {
+			int owner = grid.getOwner(vertex);
+			return owner == EntityGrid.NO_OWNER || owner == player;
+		}
+
+		/**
+		 * Writes to out the ids of every road that can be reached from the
+		 * road on root without passing through another player's settlement.
+		 * @param out must have room for every edge.
+		 * @return how many roads were written, including root.
+		 */
+		public int component(EntityGrid<?> grid, int root, int[] out) {
+			this.grid = grid;
+			player = grid.getOwner(root);
+			visited.clear();
+			visited.addId(root);
+
+			int top = 0, count = 0;
+			stack[top++] = root;
+			while (top != 0) {
+				int edge = stack[--top];
+				out[count++] = edge;
+				for (int i = Coordinate.adjacentEdgeCount(edge) - 1; i >= 0; i--) {
+					int neighborEdge = Coordinate.adjacentEdge(edge, i);
+					if (grid.getOwner(neighborEdge) != player)
+						continue;
+					//can't build a road through another user's settlement
+					if (passable(intersection(edge, neighborEdge)) && visited.addId(neighborEdge))
+						stack[top++] = neighborEdge;
 				}
+			}
+			return count;
+		}
 
-				boolean isOrphaned = true;
-				for (Coordinate.NegativeSpace neighborEdge : edge.adjacentEdges()) {
-					Entity.NegativeSpace neighborEnt = edges.get(neighborEdge);
-					isOrphaned = isOrphaned && (neighborEnt == null);
-					if (neighborEnt == null) {
-						if (neighborEdge.inBounds())
-							//can't build a road through another user's settlement
-							if ((tmp = vertices.get(Coordinate.NegativeSpace.intersection(edge, neighborEdge))) == null || tmp.getPlayer() == player)
-								available.get(player).add(neighborEdge);
-
-						adjVertices = neighborEdge.adjacentVertices();
-						assert adjVertices.size() == 2;
-						vertex0 = vertices.containsKey(adjVertices.get(0));
-						vertex1 = vertices.containsKey(adjVertices.get(1));
-						if (vertex0 && vertex1) {
-							//settlement next to another settlement
-							return makeEmptyList(available);
-						} else if (vertex0 || vertex1) {
-							//if one "vertex" contains a settlement, neither
-							//"vertex" can accommodate another settlement
-							and(validVertices, adjVertices.get(0), -1);
-							and(validVertices, adjVertices.get(1), -1);
-						}
-						isOrphaned = isOrphaned && !vertices.containsKey(Coordinate.NegativeSpace.intersection(neighborEdge, edge));
-					} else if (!visitedEdges.contains(neighborEdge)) {
-						visitedEdges.add(neighborEdge);
-						s.push(new SimpleEntry<Coordinate.NegativeSpace, Entity.NegativeSpace>(neighborEdge, neighborEnt));
+		/**
+		 * Follows every trail that reached vertex after length roads, without
+		 * taking the roads that are used already. Stops once a trail takes
+		 * every road, since none can be longer.
+		 */
+		private void extend(int vertex, int length) {
+			best = Math.max(best, length);
+			if (vertex == Coordinate.NO_ID || length != 0 && !passable(vertex))
+				return;
+			for (int i = Coordinate.adjacentEdgeCount(vertex) - 1; i >= 0 && best < bound; i--) {
+				int edge = Coordinate.adjacentEdge(vertex, i);
+				if (edge == Coordinate.NO_ID || !network.containsId(edge) || !used.addId(edge))
+					continue;
+				extend(otherEnd(edge, vertex), length + 1);
+				used.removeId(edge);
+			}
+		}
+
+		/**
+		 * @return how many roads of the network meet at vertex.
+		 */
+		private int degree(int vertex) {
+			int degree = 0;
+			for (int i = Coordinate.adjacentEdgeCount(vertex) - 1; i >= 0; i--) {
+				int edge = Coordinate.adjacentEdge(vertex, i);
+				if (edge != Coordinate.NO_ID && network.containsId(edge))
+					degree++;
+			}
+			return degree;
+		}
+
+		/**
+		 * @param edges the roads of one network, as component() writes them.
+		 * @return the length of the longest road in the network.
+		 */
+		public int longest(EntityGrid<?> grid, int[] edges, int count) {
+			this.grid = grid;
+			player = grid.getOwner(edges[0]);
+			bound = count;
+			best = 0;
+			//a road that starts at a settlement it can't pass through can't
+			//get back to the roads on the other side of it, so only the
+			//network's own roads are followed
+			network.clear();
+			for (int i = 0; i < count; i++)
+				network.addId(edges[i]);
+
+			//a longest road can't be made longer at its start, so it starts
+			//either where an odd number of roads meet or at a settlement it
+			//can't pass through. if there is no such place, every road is part
+			//of a loop and it can start anywhere
+			visited.clear();
+			boolean started = false;
+			for (int i = 0; i < count && best < bound; i++) {
+				for (int j = 0; j < 2; j++) {
+					int vertex = Coordinate.adjacentVertex(edges[i], j);
+					if (visited.addId(vertex) && (!passable(vertex) || (degree(vertex) & 1) != 0)) {
+						extend(vertex, 0);
+						started = true;
 					}
 				}
-				if (isOrphaned)
-					//edge without an adjacent edge or vertex
-					return makeEmptyList(available);
 			}
+			if (!started)
+				extend(Coordinate.adjacentVertex(edges[0], 0), 0);
+			return best;
 		}
-		if (visitedVertices.size() < vertices.size())
-			//vertex without an adjacent edge
-			return makeEmptyList(available);
+	}
 
-		for (Map.Entry<Coordinate.NegativeSpace, BitSet> validVertex : validVertices.entrySet())
-			if (validVertex.getKey().inBounds())
-				for (int player = validVertex.getValue().nextSetBit(0); player != -1; player = validVertex.getValue().nextSetBit(player + 1))
-					available.get(player).add(validVertex.getKey());
+	public static List<Set<Coordinate.NegativeSpace>> searchForAvailable(EntityGrid<?> grid) {
+		CoordinateSet[] available = new CoordinateSet[GameMap.NUM_PLAYERS];
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			available[i] = new CoordinateSet();
+		new AvailableMoveSearch().search(grid, available);
 
-		return available;
+		List<Set<Coordinate.NegativeSpace>> list = new ArrayList<Set<Coordinate.NegativeSpace>>(GameMap.NUM_PLAYERS);
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			list.add(available[i]);
+		return list;
 	}
 }
@@ -0,0 +1,135 @@
+package in.kevinj.colonists.world;
+
+/**
+ * Benchmark of LongestRoadTracker's incremental updates against working out
+ * the longest road from scratch.
+ */
+public class LongestRoadBenchmark {
+	/**
+	 * @return the vertex at the other end of edge from vertex.
+	 */
+	private static int otherEnd(int edge, int vertex) {
+		int other = Coordinate.adjacentVertex(edge, 0);
+		return other != vertex ? other : Coordinate.adjacentVertex(edge, 1);
+	}
+
+	/**
+	 * Adds the roads around the tile at (x, y) to roads.
+	 */
+	private static void addHexagon(int x, int y, CoordinateSet roads) {
+		int tile = Coordinate.PositiveSpace.valueOf(x, y).getId();
+		CoordinateSet corners = new CoordinateSet();
+		for (int i = Coordinate.adjacentVertexCount(tile) - 1; i >= 0; i--)
+			corners.addId(Coordinate.adjacentVertex(tile, i));
+		for (int vertex = corners.nextId(0); vertex != Coordinate.NO_ID; vertex = corners.nextId(vertex + 1))
+			for (int i = Coordinate.adjacentEdgeCount(vertex) - 1; i >= 0; i--)
+				if (corners.containsId(otherEnd(Coordinate.adjacentEdge(vertex, i), vertex)))
+					roads.addId(Coordinate.adjacentEdge(vertex, i));
+	}
+
+	/**
+	 * Times the longest road of a road network of player 0 that is hard to
+	 * search, next to the networks of the other players. For every road of
+	 * player 0, a LongestRoadTracker takes it away and puts it back like the
+	 * AI does when it weighs a candidate road, which is compared against
+	 * searching the whole board again after each change.
+	 */
+	private static void benchmark(String name, CoordinateSet roads, CoordinateSet villages, CoordinateSet[] others, int iterations) {
+		EntityGrid<SimulationMap.Piece> grid = new EntityGrid<SimulationMap.Piece>();
+		for (int id = roads.nextId(0); id != Coordinate.NO_ID; id = roads.nextId(id + 1))
+			grid.put((Coordinate.NegativeSpace) Coordinate.byId(id), SimulationMap.getPiece(0, Entity.Type.ROAD));
+		for (int i = 0; i < others.length; i++)
+			for (int id = others[i].nextId(0); id != Coordinate.NO_ID; id = others[i].nextId(id + 1))
+				if (!grid.isOccupied(id))
+					grid.put((Coordinate.NegativeSpace) Coordinate.byId(id), SimulationMap.getPiece(i + 1, Entity.Type.ROAD));
+		for (int id = villages.nextId(0); id != Coordinate.NO_ID; id = villages.nextId(id + 1))
+			grid.put((Coordinate.NegativeSpace) Coordinate.byId(id), SimulationMap.getPiece(1, Entity.Type.VILLAGE));
+		GameMap.Helper.LongestRoadTracker tracker = new GameMap.Helper.LongestRoadTracker(grid);
+		int longest = tracker.getLongestRoad(0);
+
+		long incremental = 0, scratch = 0, checksum = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			//the first pass warms up
+			incremental = scratch = 0;
+			for (int i = 0; i < iterations; i++) {
+				for (int id = roads.nextId(0); id != Coordinate.NO_ID; id = roads.nextId(id + 1)) {
+					Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+					long start = System.nanoTime();
+					grid.remove(loc);
+					tracker.update(loc);
+					checksum += tracker.getLongestRoad(0);
+					grid.put(loc, SimulationMap.getPiece(0, Entity.Type.ROAD));
+					tracker.update(loc);
+					checksum += tracker.getLongestRoad(0);
+					long middle = System.nanoTime();
+					grid.remove(loc);
+					checksum += new GameMap.Helper.LongestRoadTracker(grid).getLongestRoad(0);
+					grid.put(loc, SimulationMap.getPiece(0, Entity.Type.ROAD));
+					checksum += new GameMap.Helper.LongestRoadTracker(grid).getLongestRoad(0);
+					long end = System.nanoTime();
+					incremental += middle - start;
+					scratch += end - middle;
+				}
+			}
+		}
+		int changes = 2 * iterations * roads.size();
+		System.out.println(String.format("%s: %d roads, longest %d, %.2f us incremental, %.2f us from scratch per change (%d)", name, roads.size(), longest, incremental / 1e3 / changes, scratch / 1e3 / changes, checksum));
+	}
+
+	/**
+	 * Usage: LongestRoadBenchmark [iterations]
+	 */
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		CoordinateSet roads = new CoordinateSet(), villages = new CoordinateSet();
+		//the other players each have a few hexagons of roads near the corners
+		CoordinateSet[] others = { new CoordinateSet(), new CoordinateSet() };
+		addHexagon(1, 1, others[0]);
+		addHexagon(2, 1, others[0]);
+		addHexagon(1, 2, others[0]);
+		addHexagon(5, 5, others[1]);
+		addHexagon(5, 4, others[1]);
+		addHexagon(4, 5, others[1]);
+
+		//a snake that never meets itself, as long as it gets before it runs
+		//into itself or the coast, up to 15 roads
+		int vertex = Coordinate.adjacentVertex(Coordinate.PositiveSpace.valueOf(3, 1).getId(), 0);
+		CoordinateSet visited = new CoordinateSet();
+		visited.addId(vertex);
+		for (int length = 0; length < 15; length++) {
+			for (int i = 0; i < Coordinate.adjacentEdgeCount(vertex); i++) {
+				int edge = Coordinate.adjacentEdge(vertex, i);
+				if (edge != Coordinate.NO_ID && edge < Coordinate.endInBoundsId(Coordinate.Type.EDGE) && visited.addId(otherEnd(edge, vertex))) {
+					roads.addId(edge);
+					vertex = otherEnd(edge, vertex);
+					break;
+				}
+			}
+		}
+		benchmark("snake", roads, villages, others, iterations);
+
+		//three hexagons around a vertex, where every road meets three others
+		roads.clear();
+		addHexagon(3, 3, roads);
+		addHexagon(4, 4, roads);
+		addHexagon(4, 3, roads);
+		benchmark("3 hexagons", roads, villages, others, iterations);
+
+		//the same, cut at three corners by another player's villages
+		for (int i = 0; i < 3; i++)
+			villages.addId(Coordinate.adjacentVertex(Coordinate.PositiveSpace.valueOf(4, 3).getId(), 2 * i));
+		benchmark("3 hexagons, cut", roads, villages, others, iterations);
+		villages.clear();
+
+		//seven hexagons in a flower, twice as many roads as a player has
+		roads.clear();
+		addHexagon(3, 3, roads);
+		addHexagon(3, 4, roads);
+		addHexagon(4, 4, roads);
+		addHexagon(4, 3, roads);
+		addHexagon(3, 2, roads);
+		addHexagon(2, 2, roads);
+		addHexagon(2, 3, roads);
+		benchmark("7 hexagons", roads, villages, others, Math.max(1, iterations / 20));
+	}
+}
@@ -0,0 +1,196 @@
+package in.kevinj.colonists.world;
+
+import java.util.Arrays;
+
+/**
+ * A rule that MapGenerator checks every map against, throwing away maps that
+ * break it and trying again. Constraints are given a Layout, which describes
+ * the resource tiles as bit masks over y * MapGenerator.SIZE + x, so most of
+ * them come down to a few shifts and ands.
+ */
+public abstract class MapConstraint {
+	/**
+	 * The resource tiles of a map that has been laid out but not yet written.
+	 */
+	public static class Layout {
+		private final long[] resourceMasks;
+		private final long[] chitMasks;
+		private final int[] pips;
+
+		/* package-private */ Layout() {
+			resourceMasks = new long[MapTile.ResourceType.values().length];
+			chitMasks = new long[MapTile.ResourceTile.MAX_CHIT + 1];
+			pips = new int[MapTile.ResourceType.values().length];
+		}
+
+		/* package-private */ void clear() {
+			Arrays.fill(resourceMasks, 0);
+			Arrays.fill(chitMasks, 0);
+			Arrays.fill(pips, 0);
+		}
+
+		/* package-private */ void add(int position, MapTile tile) {
+			long bit = 1L << position;
+			int type = tile.getResourceType().ordinal();
+			resourceMasks[type] |= bit;
+			chitMasks[tile.getChit()] |= bit;
+			pips[type] += tile.getPips();
+		}
+
+		/**
+		 * @return a mask of the tiles of the given type.
+		 */
+		public long getResourceMask(MapTile.ResourceType type) {
+			return resourceMasks[type.ordinal()];
+		}
+
+		/**
+		 * @return a mask of the tiles with the given chit, where the wasteland
+		 * has chit 0.
+		 */
+		public long getChitMask(int chit) {
+			return chitMasks[chit];
+		}
+
+		/**
+		 * @return the pips of all tiles of the given type added up.
+		 */
+		public int getPips(MapTile.ResourceType type) {
+			return pips[type.ordinal()];
+		}
+	}
+
+	/**
+	 * No two tiles with any of the given chits touch, e.g. 6 and 8 by default.
+	 */
+	public static class NoAdjacentChits extends MapConstraint {
+		private final int[] chits;
+
+		public NoAdjacentChits(int... chits) {
+			this.chits = chits.length == 0 ? new int[] { 6, 8 } : chits.clone();
+		}
+
+		@Override
+		public boolean accept(Layout layout) {
+			long mask = 0;
+			for (int chit : chits)
+				mask |= layout.getChitMask(chit);
+			return !hasAdjacent(mask);
+		}
+
+		@Override
+		public String toString() {
+			return "no adjacent " + Arrays.toString(chits);
+		}
+	}
+
+	/**
+	 * No more than maxSize tiles of the same resource are connected. Only 1,
+	 * i.e. no two alike tiles touch, and 2, i.e. pairs but no chains, are
+	 * supported.
+	 */
+	public static class NoResourceClusters extends MapConstraint {
+		private final int maxSize;
+
+		public NoResourceClusters(int maxSize) {
+			if (maxSize != 1 && maxSize != 2)
+				throw new IllegalArgumentException("maxSize must be 1 or 2");
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public boolean accept(Layout layout) {
+			for (MapTile.ResourceType type : MapTile.ResourceType.values()) {
+				long mask = layout.getResourceMask(type);
+				//any three connected tiles have one in the middle that touches
+				//the other two
+				if (maxSize == 1 ? hasAdjacent(mask) : (mask & touchingTwice(mask)) != 0)
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "no clusters over " + maxSize;
+		}
+	}
+
+	/**
+	 * Every resource gets between min and max pips per tile, so that no
+	 * resource is much more scarce than the rest. The average over the whole
+	 * map is 58 / 18, about 3.2.
+	 */
+	public static class PipBalance extends MapConstraint {
+		private final float min, max;
+
+		public PipBalance(float min, float max) {
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public boolean accept(Layout layout) {
+			for (MapTile.ResourceType type : MapTile.ResourceType.values()) {
+				if (type == MapTile.ResourceType.WASTELAND)
+					continue;
+				int pips = layout.getPips(type);
+				int tiles = Long.bitCount(layout.getResourceMask(type));
+				if (pips < min * tiles || pips > max * tiles)
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "pips per tile in [" + min + ", " + max + "]";
+		}
+	}
+
+	/**
+	 * Tiles (x, y) and (x + 1, y), (x, y + 1) and (x + 1, y + 1) touch, so a
+	 * shift by 1, SIZE or SIZE + 1 moves each tile of a mask onto a neighbor.
+	 * Land never reaches the first or last column, so nothing wraps from one
+	 * row onto land in the next.
+	 */
+	private static final int[] SHIFTS = { 1, MapGenerator.SIZE, MapGenerator.SIZE + 1 };
+
+	/**
+	 * @return true if any two tiles of mask touch.
+	 */
+	public static boolean hasAdjacent(long mask) {
+		return (mask & (mask << SHIFTS[0] | mask << SHIFTS[1] | mask << SHIFTS[2])) != 0;
+	}
+
+	/**
+	 * @return a mask of the tiles that touch at least one tile of mask.
+	 */
+	public static long touching(long mask) {
+		long touching = 0;
+		for (int shift : SHIFTS)
+			touching |= mask << shift | mask >>> shift;
+		return touching;
+	}
+
+	/**
+	 * @return a mask of the tiles that touch at least two tiles of mask.
+	 */
+	public static long touchingTwice(long mask) {
+		long once = 0, twice = 0;
+		for (int shift : SHIFTS) {
+			long s = mask << shift;
+			twice |= once & s;
+			once |= s;
+			s = mask >>> shift;
+			twice |= once & s;
+			once |= s;
+		}
+		return twice;
+	}
+
+	/**
+	 * @return false to throw the map away.
+	 */
+	public abstract boolean accept(Layout layout);
+}
@@ -0,0 +1,290 @@
+package in.kevinj.colonists.world;
+
+import java.util.Random;
+
+/**
+ * Makes random maps. The tiles are shared flyweights and the generator keeps
+ * its scratch space between calls, so generating a map only writes the 37
+ * tiles into the given layout. A map only depends on what the Random returns,
+ * so the same seed always makes the same map. Not thread-safe, so use one
+ * per thread.
+ *
+ * Maps can be held to MapConstraints, in which case maps that break any of
+ * them are thrown away and laid out again until one passes. Constraints are
+ * checked before anything is written, so a rejected map costs little more
+ * than the random numbers that went into it.
+ */
+public class MapGenerator {
+	/**
+	 * Gives the same numbers as java.util.Random for the same seed, but keeps
+	 * its seed in a plain long instead of an AtomicLong. Most of the time
+	 * spent making a map is in the Random, so this makes generating maps on a
+	 * single thread several times faster.
+	 */
+	public static class UnsynchronizedRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private static final long MULTIPLIER = 0x5DEECE66DL;
+		private static final long ADDEND = 0xBL;
+		private static final long MASK = (1L << 48) - 1;
+
+		private long seed;
+
+		public UnsynchronizedRandom(long seed) {
+			super(seed);
+		}
+
+		@Override
+		public void setSeed(long seed) {
+			//called by the superclass constructor too
+			this.seed = (seed ^ MULTIPLIER) & MASK;
+			super.setSeed(seed);
+		}
+
+		@Override
+		protected int next(int bits) {
+			seed = (seed * MULTIPLIER + ADDEND) & MASK;
+			return (int) (seed >>> (48 - bits));
+		}
+	}
+
+	/**
+	 * Rows and columns of the layout that maps are written to.
+	 */
+	public static final int SIZE = 7;
+
+	private static final int PORTS = 9;
+	private static final int WATER_TILES = 18;
+	private static final int RESOURCE_TILES = 19;
+	private static final int TILES = WATER_TILES + RESOURCE_TILES;
+
+	/**
+	 * How many maps generate() lays out before giving up on the constraints.
+	 */
+	private static final int MAX_ATTEMPTS = 1 << 20;
+
+	private static final int[] CHIT_ORDER = { 5, 2, 6, 3, 8, 10, 9, 12, 11, 4, 8, 10, 9, 4, 5, 6, 3, 11 };
+
+	/**
+	 * For each keystone, the y * SIZE + x of every tile in the order that they
+	 * are laid: clockwise around the outer ring starting from the keystone,
+	 * then inwards.
+	 */
+	private static final int[] SPIRALS;
+
+	private static final MapTile.PortType[] PORT_BAG;
+	private static final MapTile.ResourceType[] RESOURCE_BAG;
+
+	static {
+		SPIRALS = new int[6 * TILES];
+		for (int keystone = 0; keystone < 6; keystone++) {
+			int x, y;
+			switch (keystone) {
+				case 0:	x = 3;	y = 0;	break;
+				case 1:	x = 6;	y = 3;	break;
+				case 2:	x = 6;	y = 6;	break;
+				case 3:	x = 3;	y = 6;	break;
+				case 4:	x = 0;	y = 3;	break;
+				case 5:	x = 0;	y = 0;	break;
+				default:	throw new AssertionError("Wrong keystone ID");
+			}
+			int j = keystone * TILES;
+			for (int rad = 3; rad >= 0; --rad) {
+				for (int i = 0; i < Math.max(1, 6 * rad); i++) {
+					SPIRALS[j++] = y * SIZE + x;
+					if (y == 3 - rad) {
+						if (x == 3) y++;
+						x++;
+					} else if (y == 3 + rad) {
+						if (x == 3) y--;
+						x--;
+					} else if (x > 3) {
+						if (x != 3 + rad) x++;
+						y++;
+					} else if (x < 3) {
+						if (x != 3 - rad) x--;
+						y--;
+					}
+				}
+				if (y == 3 - rad) {
+					if (x != 3) x++;
+					y++;
+				} else if (y == 3 + rad) {
+					if (x != 3) x--;
+					y--;
+				} else if (x == 3 - rad) {
+					x++;
+				} else if (x == 3 + rad) {
+					x--;
+				}
+			}
+		}
+
+		PORT_BAG = new MapTile.PortType[PORTS];
+		int i = 0;
+		for (MapTile.PortType type : MapTile.PortType.values())
+			if (type != MapTile.PortType.NONE)
+				for (int k = type.frequency - 1; k >= 0; --k)
+					PORT_BAG[i++] = type;
+		RESOURCE_BAG = new MapTile.ResourceType[RESOURCE_TILES];
+		i = 0;
+		for (MapTile.ResourceType type : MapTile.ResourceType.values())
+			for (int k = type.frequency - 1; k >= 0; --k)
+				RESOURCE_BAG[i++] = type;
+	}
+
+	private final MapTile.PortType[] ports;
+	private final MapTile.ResourceType[] resources;
+	private final MapTile[] tiles;
+	private final MapConstraint[] constraints;
+	private final MapConstraint.Layout layout;
+	private long attempts;
+
+	public MapGenerator(MapConstraint... constraints) {
+		ports = new MapTile.PortType[PORTS];
+		resources = new MapTile.ResourceType[RESOURCE_TILES];
+		tiles = new MapTile[TILES];
+		this.constraints = constraints.clone();
+		layout = new MapConstraint.Layout();
+	}
+
+	/**
+	 * Same as Collections.shuffle(), so that maps stay the same for a seed.
+	 */
+	private static void shuffle(Object[] a, Random r) {
+		for (int i = a.length; i > 1; i--) {
+			int j = r.nextInt(i);
+			Object tmp = a[i - 1];
+			a[i - 1] = a[j];
+			a[j] = tmp;
+		}
+	}
+
+	/**
+	 * Lays out the water tiles, starting from a keystone with the given
+	 * rotation.
+	 */
+	private void layPorts(Random r, int rot) {
+		System.arraycopy(PORT_BAG, 0, ports, 0, PORTS);
+		shuffle(ports, r);
+
+		//can have maximum of two ports that are separated by only one edge
+		//from a neighbor.
+		//can have maximum of two water tiles in a row.
+		//must end up with 9 water tiles and 9 port tiles.
+		int remainingStaggers = 2, remainingSpacers = 0, j = 0, consecutive = 1;
+		boolean placePort = false;
+		for (int i = 0; i < WATER_TILES; i++) {
+			if (placePort) {
+				tiles[i] = MapTile.PortTile.valueOf(ports[j], rot);
+				j++;
+				if (j != PORTS && consecutive < 2 && remainingStaggers > 0 && r.nextInt(4) < 1) {
+					remainingStaggers--;
+					remainingSpacers++;
+					consecutive++;
+				} else {
+					placePort = false;
+					consecutive = 1;
+				}
+			} else {
+				tiles[i] = MapTile.PortTile.valueOf(MapTile.PortType.NONE, rot);
+				if (j == PORTS || consecutive < 2 && remainingSpacers > 0 && r.nextInt(4) < 1) {
+					remainingSpacers--;
+					consecutive++;
+				} else {
+					placePort = true;
+					consecutive = 1;
+				}
+			}
+			if ((i + 2) % 3 == 0)
+				rot = (rot + 60) % 360;
+		}
+
+		if (j != PORTS) throw new AssertionError("Did not use all 9 ports (" + j + " used)");
+	}
+
+	/**
+	 * Lays out the resource tiles after the water tiles.
+	 */
+	private void layResources(Random r) {
+		System.arraycopy(RESOURCE_BAG, 0, resources, 0, RESOURCE_TILES);
+		shuffle(resources, r);
+
+		int i = 0;
+		for (int j = RESOURCE_TILES - 1; j >= 0; --j) {
+			MapTile.ResourceType type = resources[j];
+			if (type == MapTile.ResourceType.WASTELAND)
+				tiles[TILES - 1 - j] = MapTile.ResourceTile.valueOf(0, type);
+			else
+				tiles[TILES - 1 - j] = MapTile.ResourceTile.valueOf(CHIT_ORDER[i++], type);
+		}
+	}
+
+	/**
+	 * @return whether the tiles laid out from keystone meet every constraint.
+	 */
+	private boolean accept(int keystone) {
+		if (constraints.length == 0)
+			return true;
+
+		layout.clear();
+		for (int i = WATER_TILES, j = keystone * TILES + WATER_TILES; i < TILES; i++, j++)
+			layout.add(SPIRALS[j], tiles[i]);
+		for (MapConstraint constraint : constraints)
+			if (!constraint.accept(layout))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Writes a random map to resources, which must be at least SIZE by SIZE
+	 * and is indexed by [y][x]. Tiles that aren't part of the map are left
+	 * alone.
+	 * @return where the highwayman starts, i.e. the wasteland.
+	 * @throws IllegalStateException if no map met the constraints after many
+	 * tries.
+	 */
+	public Coordinate.PositiveSpace generate(Random r, MapTile[][] resources) {
+		int keystone;
+		int tries = 0;
+		do {
+			if (++tries > MAX_ATTEMPTS)
+				throw new IllegalStateException("No map met the constraints in " + MAX_ATTEMPTS + " tries");
+			attempts++;
+			//keystone water tiles only touch a resource tile on one edge (i.e.
+			//corner in the hexagon that the map makes). these keystones exist
+			//at (0, 0), (0, 3), (3, 0), (3, 6), (6, 3), (6, 6). pick a
+			//random one as a reference point to make layPorts() easier to
+			//implement.
+			keystone = r.nextInt(6);
+			layPorts(r, keystone * 60);
+			layResources(r);
+		} while (!accept(keystone));
+
+		Coordinate.PositiveSpace highwayman = null;
+		for (int i = 0, j = keystone * TILES; i < TILES; i++, j++) {
+			int x = SPIRALS[j] % SIZE, y = SPIRALS[j] / SIZE;
+			resources[y][x] = tiles[i];
+			if (tiles[i].isResource() && tiles[i].getResourceType() == MapTile.ResourceType.WASTELAND)
+				highwayman = Coordinate.PositiveSpace.valueOf(x, y);
+		}
+		return highwayman;
+	}
+
+	/**
+	 * Writes a random map to each of boards, and where its highwayman starts
+	 * to the same index of highwaymen.
+	 */
+	public void generate(Random r, MapTile[][][] boards, Coordinate.PositiveSpace[] highwaymen) {
+		for (int i = 0; i < boards.length; i++)
+			highwaymen[i] = generate(r, boards[i]);
+	}
+
+	/**
+	 * @return how many maps have been laid out, including the ones that the
+	 * constraints threw away.
+	 */
+	public long getAttempts() {
+		return attempts;
+	}
+}
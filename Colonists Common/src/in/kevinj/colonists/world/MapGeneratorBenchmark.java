@@ -0,0 +1,48 @@
+package in.kevinj.colonists.world;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of how fast MapGenerator makes maps under MapConstraints.
+ */
+public class MapGeneratorBenchmark {
+	/**
+	 * Usage: MapGeneratorBenchmark [seconds per set] [seed]
+	 *
+	 * Generates maps for a while under each of a few sets of constraints, and
+	 * prints how many maps a second each accepted and what share of the laid
+	 * out maps that was.
+	 */
+	public static void main(String[] args) {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		MapConstraint[][] sets = {
+			{ },
+			{ new MapConstraint.NoAdjacentChits() },
+			{ new MapConstraint.NoResourceClusters(2) },
+			{ new MapConstraint.NoResourceClusters(1) },
+			{ new MapConstraint.PipBalance(2.5f, 4f) },
+			{ new MapConstraint.NoAdjacentChits(), new MapConstraint.NoResourceClusters(2), new MapConstraint.PipBalance(2.5f, 4f) }
+		};
+
+		MapTile[][][] boards = new MapTile[64][MapGenerator.SIZE][MapGenerator.SIZE];
+		Coordinate.PositiveSpace[] highwaymen = new Coordinate.PositiveSpace[boards.length];
+		for (MapConstraint[] set : sets) {
+			MapGenerator generator = new MapGenerator(set);
+			Random r = new MapGenerator.UnsynchronizedRandom(seed);
+			//warm up
+			generator.generate(r, boards, highwaymen);
+
+			long start = System.nanoTime(), end = start + (long) (seconds * 1e9), accepted = 0;
+			long attempts = generator.getAttempts();
+			do {
+				generator.generate(r, boards, highwaymen);
+				accepted += boards.length;
+			} while (System.nanoTime() - end < 0);
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			attempts = generator.getAttempts() - attempts;
+			System.out.println(String.format("%.0f maps/s, %.2f%% accepted: %s", accepted / elapsed, 100d * accepted / attempts, Arrays.toString(set)));
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package in.kevinj.colonists.world;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that the same seed always makes the same map, by digesting the maps
+ * of a fixed set of seeds and comparing against the digest they made when the
+ * generator was written. Any change to the order in which the generator draws
+ * random numbers changes the maps that saved seeds stand for, and shows up
+ * here.
+ */
+public class MapGeneratorCheck {
+	private static final int SEEDS = 10000;
+	private static final long EXPECTED_DIGEST = 6451851288841062665L;
+
+	private static class Highwayman implements Entity.PositiveSpace {
+		private Coordinate.PositiveSpace position;
+
+		@Override
+		public void update(float tDelta) {
+
+		}
+
+		@Override
+		public Entity.Type getType() {
+			return Entity.Type.HIGHWAYMAN;
+		}
+
+		@Override
+		public Coordinate.PositiveSpace getPosition() {
+			return position;
+		}
+
+		@Override
+		public void setPosition(Coordinate.PositiveSpace coord) {
+			position = coord;
+		}
+	}
+
+	/**
+	 * @return a hash of the type and chit or port and rotation of every tile,
+	 * and of where the highwayman starts.
+	 */
+	private static int digest(MapTile[][] resources, Coordinate.PositiveSpace highwayman) {
+		StringBuilder sb = new StringBuilder();
+		for (int y = 0; y < MapGenerator.SIZE; y++) {
+			for (int x = 0; x < MapGenerator.SIZE; x++) {
+				MapTile tile = resources[y][x];
+				if (tile == null)
+					sb.append('-');
+				else if (tile.isResource())
+					sb.append(tile.getResourceType()).append(tile.getChit());
+				else
+					sb.append(tile.getPortType()).append(tile.getRotation());
+				sb.append(',');
+			}
+		}
+		sb.append(highwayman);
+		return sb.toString().hashCode();
+	}
+
+	/**
+	 * Makes the maps of every seed through GameMap.Helper.initializeMap(),
+	 * like a game does.
+	 */
+	private static long digestInitializeMap() {
+		Highwayman highwayman = new Highwayman();
+		long digest = 0;
+		for (int seed = 0; seed < SEEDS; seed++) {
+			MapTile[][] resources = new MapTile[MapGenerator.SIZE][MapGenerator.SIZE];
+			GameMap.Helper.initializeMap(resources, highwayman, new Random(seed));
+			digest = digest * 1000003 + digest(resources, highwayman.getPosition());
+		}
+		return digest;
+	}
+
+	/**
+	 * Makes the maps of every seed on one generator with UnsynchronizedRandom,
+	 * which must give the same numbers as Random.
+	 */
+	private static long digestUnsynchronized() {
+		MapGenerator generator = new MapGenerator();
+		MapTile[][] resources = new MapTile[MapGenerator.SIZE][MapGenerator.SIZE];
+		long digest = 0;
+		for (int seed = 0; seed < SEEDS; seed++)
+			digest = digest * 1000003 + digest(resources, generator.generate(new MapGenerator.UnsynchronizedRandom(seed), resources));
+		return digest;
+	}
+
+	private static boolean check(String name, long digest) {
+		System.out.println(String.format("%s: %d %s", name, digest, digest == EXPECTED_DIGEST ? "ok" : "MISMATCH"));
+		return digest == EXPECTED_DIGEST;
+	}
+
+	/**
+	 * Usage: MapGeneratorCheck [threads]
+	 *
+	 * Digests the maps of seeds 0 to 9999 on this thread, with
+	 * UnsynchronizedRandom, and on a number of threads at once, each of which
+	 * has its own generator in initializeMap(). Exits with 1 if any digest
+	 * differs from the expected one.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
+		boolean ok = check("initializeMap", digestInitializeMap());
+		ok &= check("UnsynchronizedRandom", digestUnsynchronized());
+
+		final AtomicInteger mismatches = new AtomicInteger();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (digestInitializeMap() != EXPECTED_DIGEST)
+						mismatches.incrementAndGet();
+				}
+			}, "check-" + i);
+			workers[i].start();
+		}
+		for (int i = 0; i < threads; i++)
+			workers[i].join();
+		System.out.println(String.format("%d threads: %d mismatches", threads, mismatches.get()));
+		ok &= mismatches.get() == 0;
+
+		if (!ok)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,365 @@
+package in.kevinj.colonists.world;
+
+import in.kevinj.colonists.TrainerProperties;
+
+import java.util.Random;
+
+/**
+ * Monte Carlo tree search over the placements that SimulationMap allows. Each
+ * playout starts from a copy of the root, walks down the tree by UCT, adds the
+ * children of the node it ends up at, and then plays on at random for a number
+ * of plies before scoring every player by their share of the total score.
+ *
+ * The random moves of the player that the search is for are biased by their
+ * TrainerProperties, while the other players pick by production alone. The
+ * factors are read as going from -100 to 100, with 0 being neutral:
+ *  - largestArmyFactor weighs vertices next to iron, hemp and rice over ones
+ *      next to bamboo and brownstone, and the other way around when negative,
+ *      when roads are also weighed higher.
+ *  - offensiveFactor weighs production higher when positive, and places that
+ *      another player could take next higher when negative.
+ *  - observantFactor is how often the biased pick is made instead of a
+ *      uniformly random one.
+ *  - strategicFactor makes the playouts longer and explores more.
+ *
+ * The tree is kept in preallocated arrays and the playouts run on a map that
+ * is reused, so searching allocates next to nothing. Not thread-safe, so use
+ * one per thread.
+ */
+public class MonteCarloSearch {
+	/**
+	 * A move that only ends the turn, for when a player can't place anything.
+	 */
+	public static final int PASS = Coordinate.NO_ID;
+
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+	private static final int BASE_PLIES = 24;
+	private static final double BASE_EXPLORATION = 0.7;
+	private static final int DEADLINE_CHECK_INTERVAL = 16;
+
+	private final Random random;
+
+	//the tree, one entry per node. a node's children are next to each other
+	//and are only added once the node is reached, so firstChild is -1 until
+	//then
+	private final int[] moves;
+	private final int[] movers;
+	private final int[] parents;
+	private final int[] firstChild;
+	private final int[] childCount;
+	private final int[] visits;
+	private final double[] rewards;
+	private int nodeCount;
+
+	private SimulationMap root, sim;
+	private final CoordinateSet legal;
+	private final int[] candidates;
+	private final float[] candidateWeights;
+	private final double[] scores;
+	private int self;
+	private int playouts;
+
+	//how the player that the search is for plays out
+	private final float[] resourceWeights;
+	private final float roadWeight;
+	private final float blockWeight;
+	private final float biasChance;
+	private final int plies;
+	private final double exploration;
+	private final float[] vertexWeights;
+	private final float[] neutralVertexWeights;
+
+	public MonteCarloSearch(TrainerProperties props, Random random) {
+		this(props, random, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param props null for a neutral player.
+	 * @param capacity how many nodes the tree can grow to. Once it is full,
+	 * playouts go on without adding new nodes.
+	 */
+	public MonteCarloSearch(TrainerProperties props, Random random, int capacity) {
+		this.random = random;
+		moves = new int[capacity];
+		movers = new int[capacity];
+		parents = new int[capacity];
+		firstChild = new int[capacity];
+		childCount = new int[capacity];
+		visits = new int[capacity];
+		rewards = new double[capacity];
+
+		legal = new CoordinateSet();
+		candidates = new int[Coordinate.idCount()];
+		candidateWeights = new float[Coordinate.idCount()];
+		scores = new double[GameMap.NUM_PLAYERS];
+		vertexWeights = new float[Coordinate.idCount()];
+		neutralVertexWeights = new float[Coordinate.idCount()];
+
+		float largestArmy = factor(props == null ? 0 : props.largestArmyFactor);
+		float offensive = factor(props == null ? 0 : props.offensiveFactor);
+		float observant = factor(props == null ? 0 : props.observantFactor);
+		float strategic = factor(props == null ? 0 : props.strategicFactor);
+		resourceWeights = new float[MapTile.ResourceType.values().length];
+		for (MapTile.ResourceType type : MapTile.ResourceType.values()) {
+			switch (type) {
+				case IRON:
+				case HEMP:
+				case RICE:
+					resourceWeights[type.ordinal()] = (1 + largestArmy) * (1 + Math.max(0, offensive));
+					break;
+				case BAMBOO:
+				case BROWNSTONE:
+					resourceWeights[type.ordinal()] = (1 - largestArmy) * (1 + Math.max(0, offensive));
+					break;
+				default:
+					resourceWeights[type.ordinal()] = 0;
+					break;
+			}
+		}
+		roadWeight = 1 + Math.max(0, -largestArmy);
+		blockWeight = 1 + 2 * Math.max(0, -offensive);
+		biasChance = 0.5f + observant / 2;
+		plies = Math.max(3, Math.round(BASE_PLIES * (1 + strategic)));
+		exploration = BASE_EXPLORATION * (1 + strategic / 2);
+	}
+
+	/**
+	 * @return the factor clamped to [-1, 1].
+	 */
+	private static float factor(int factor) {
+		return Math.max(-100, Math.min(100, factor)) / 100f;
+	}
+
+	/**
+	 * Throws away the tree and starts a new one from root, for the player whose
+	 * turn it is. root is read by every playout, so it must not change while
+	 * searching.
+	 */
+	public void reset(SimulationMap root) {
+		this.root = root;
+		if (sim == null)
+			sim = new SimulationMap(root);
+		self = root.getCurrentPlayerTurn();
+		playouts = 0;
+
+		//production only depends on the tiles, so weigh every vertex now
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endId(Coordinate.Type.VERTEX); id++) {
+			float weight = 0;
+			for (int i = Coordinate.adjacentTileCount(id) - 1; i >= 0; i--) {
+				int tileId = Coordinate.adjacentTile(id, i);
+				MapTile tile;
+				if (tileId != Coordinate.NO_ID && (tile = root.getTile(tileId)) != null && tile.isResource())
+					weight += tile.getPips() * resourceWeights[tile.getResourceType().ordinal()];
+			}
+			vertexWeights[id] = 1 + weight;
+			neutralVertexWeights[id] = 1 + root.getProduction(id);
+		}
+
+		nodeCount = 1;
+		moves[0] = PASS;
+		movers[0] = -1;
+		parents[0] = -1;
+		firstChild[0] = -1;
+		childCount[0] = 0;
+		visits[0] = 0;
+		rewards[0] = 0;
+	}
+
+	/**
+	 * Adds a child to node for every move that the player to move on sim can
+	 * make. Does nothing if the tree is full.
+	 */
+	private void expand(int node) {
+		int player = sim.getCurrentPlayerTurn();
+		sim.getLegalMoves(player, legal);
+		int count = legal.size();
+		if (count == 0 && !sim.isGameOver())
+			count = 1;
+		if (nodeCount + count > moves.length)
+			return;
+
+		firstChild[node] = nodeCount;
+		childCount[node] = count;
+		if (legal.isEmpty()) {
+			if (count != 0)
+				addNode(node, PASS, player);
+		} else {
+			for (int id = legal.nextId(0); id != Coordinate.NO_ID; id = legal.nextId(id + 1))
+				addNode(node, id, player);
+		}
+	}
+
+	private void addNode(int parent, int move, int mover) {
+		moves[nodeCount] = move;
+		movers[nodeCount] = mover;
+		parents[nodeCount] = parent;
+		firstChild[nodeCount] = -1;
+		childCount[nodeCount] = 0;
+		visits[nodeCount] = 0;
+		rewards[nodeCount] = 0;
+		nodeCount++;
+	}
+
+	/**
+	 * @return the child of node with the best upper confidence bound, or an
+	 * unvisited one if there is any.
+	 */
+	private int select(int node) {
+		int best = -1;
+		double bestValue = Double.NEGATIVE_INFINITY;
+		double logVisits = Math.log(visits[node]);
+		for (int child = firstChild[node], end = child + childCount[node]; child < end; child++) {
+			if (visits[child] == 0)
+				return child;
+			double value = rewards[child] / visits[child] + exploration * Math.sqrt(logVisits / visits[child]);
+			if (value > bestValue) {
+				bestValue = value;
+				best = child;
+			}
+		}
+		return best;
+	}
+
+	private void apply(int move) {
+		if (move == PASS)
+			sim.endTurn();
+		else
+			sim.play(move);
+	}
+
+	/**
+	 * @return a legal move for the player to move on sim, picked at random with
+	 * a bias, or PASS if there is none.
+	 */
+	private int pickPlayoutMove() {
+		int player = sim.getCurrentPlayerTurn();
+		sim.getLegalMoves(player, legal);
+		if (legal.isEmpty())
+			return PASS;
+
+		boolean biased = player != self || random.nextFloat() < biasChance;
+		float[] weights = player == self ? vertexWeights : neutralVertexWeights;
+		int count = 0;
+		float total = 0;
+		for (int id = legal.nextId(0); id != Coordinate.NO_ID; id = legal.nextId(id + 1)) {
+			float weight = 1;
+			if (biased) {
+				weight = id < Coordinate.endId(Coordinate.Type.VERTEX) ? weights[id] : player == self ? roadWeight : 1;
+				if (player == self && blockWeight != 1)
+					for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+						if (i != player && sim.getPlayer(i).availableMoves.containsId(id))
+							weight *= blockWeight;
+			}
+			candidates[count] = id;
+			total += weight;
+			candidateWeights[count++] = total;
+		}
+		float r = random.nextFloat() * total;
+		for (int i = 0; i < count - 1; i++)
+			if (r < candidateWeights[i])
+				return candidates[i];
+		return candidates[count - 1];
+	}
+
+	/**
+	 * Runs one playout and adds its result to the tree.
+	 */
+	public void iterate() {
+		sim.copyFrom(root);
+
+		int node = 0;
+		int depth = 0;
+		while (firstChild[node] != -1 && childCount[node] != 0) {
+			node = select(node);
+			apply(moves[node]);
+			depth++;
+		}
+		if (firstChild[node] == -1 && (node == 0 || visits[node] != 0)) {
+			expand(node);
+			if (childCount[node] != 0) {
+				node = firstChild[node];
+				apply(moves[node]);
+				depth++;
+			}
+		}
+
+		for (int ply = depth; ply < plies && !sim.isGameOver(); ply++)
+			apply(pickPlayoutMove());
+
+		double total = 0;
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			total += scores[i] = sim.getScore(i);
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			scores[i] = total == 0 ? 1d / GameMap.NUM_PLAYERS : scores[i] / total;
+
+		for (; node != 0; node = parents[node]) {
+			visits[node]++;
+			rewards[node] += scores[movers[node]];
+		}
+		visits[0]++;
+		playouts++;
+	}
+
+	/**
+	 * Searches from root for the given number of playouts.
+	 * @return the best move for the player whose turn it is on root.
+	 */
+	public int search(SimulationMap root, int playouts) {
+		reset(root);
+		for (int i = 0; i < playouts; i++)
+			iterate();
+		return getBestMove();
+	}
+
+	/**
+	 * Searches from root until System.nanoTime() reaches deadline. Checks the
+	 * time every few playouts, so it may run a little over.
+	 * @return the best move for the player whose turn it is on root.
+	 */
+	public int searchUntil(SimulationMap root, long deadline) {
+		reset(root);
+		do {
+			for (int i = 0; i < DEADLINE_CHECK_INTERVAL; i++)
+				iterate();
+		} while (deadline - System.nanoTime() > 0);
+		return getBestMove();
+	}
+
+	/**
+	 * @return the move at the root that was played out the most, or PASS if
+	 * there isn't one.
+	 */
+	public int getBestMove() {
+		int best = PASS;
+		int bestVisits = -1;
+		for (int child = firstChild[0], end = child + childCount[0]; child != -1 && child < end; child++) {
+			if (visits[child] > bestVisits) {
+				bestVisits = visits[child];
+				best = moves[child];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return how many playouts went into the current tree.
+	 */
+	public int getPlayoutCount() {
+		return playouts;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @param commit reused for the returned move.
+	 * @return the action that makes move on a map, or an EndTurn for PASS.
+	 */
+	public static PlayerAction toAction(GameMap<?> map, int move, PlayerAction.CommitMove<?, ?> commit) {
+		if (move == PASS)
+			return new PlayerAction.EndTurn(map);
+		Coordinate.NegativeSpace coord = (Coordinate.NegativeSpace) Coordinate.byId(move);
+		return commit.reset(coord.getType() == Coordinate.Type.EDGE ? Entity.Type.ROAD : Entity.Type.VILLAGE, coord);
+	}
+}
@@ -0,0 +1,55 @@
+package in.kevinj.colonists.world;
+
+import java.util.Random;
+
+/**
+ * Benchmark of how fast MonteCarloSearch plays out a position.
+ */
+public class MonteCarloSearchBenchmark {
+	/**
+	 * Plays moves on a new game at random until it is set up and each player
+	 * has a few more pieces.
+	 */
+	private static void playToMidgame(SimulationMap map, Random r) {
+		CoordinateSet legal = new CoordinateSet();
+		while (!map.isGameOver() && (!map.isSetUp() || map.getVillageCount(0) < 3)) {
+			map.getLegalMoves(map.getCurrentPlayerTurn(), legal);
+			if (legal.isEmpty()) {
+				map.endTurn();
+				continue;
+			}
+			int id = legal.nextId(0);
+			for (int skip = r.nextInt(legal.size()); skip > 0; skip--)
+				id = legal.nextId(id + 1);
+			map.play(id);
+		}
+	}
+
+	private static void benchmark(String name, MonteCarloSearch search, SimulationMap root, int playouts) {
+		for (int pass = 0; pass < 4; pass++) {
+			//the first pass warms up
+			long start = System.nanoTime();
+			search.search(root, playouts);
+			long elapsed = System.nanoTime() - start;
+			if (pass != 0)
+				System.out.println(String.format("%s: %.0f playouts/s, %d nodes", name, playouts / (elapsed / 1e9), search.getNodeCount()));
+		}
+	}
+
+	/**
+	 * Usage: MonteCarloSearchBenchmark [playouts] [seed]
+	 *
+	 * Prints how many playouts a second a neutral search gets through from
+	 * the first move of a random game and from a position after setup.
+	 */
+	public static void main(String[] args) {
+		int playouts = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		Random r = new Random(args.length > 1 ? Long.parseLong(args[1]) : 42);
+
+		MonteCarloSearch search = new MonteCarloSearch(null, new Random(r.nextLong()));
+		SimulationMap root = SimulationMap.newGame(r);
+		benchmark("setup", search, root, playouts);
+		playToMidgame(root, r);
+		benchmark("after setup", search, root, playouts);
+	}
+}
@@ -0,0 +1,141 @@
+package in.kevinj.colonists.world;
+
+import java.util.Arrays;
+
+/**
+ * Places entities on a map and remembers exactly which bits of each player's
+ * available moves every placement changed, so that undo() can put the map
+ * back the way it was without running the removal analysis. Undoing costs one
+ * GameMap.restoreGrid() plus one xor per changed word of the available moves,
+ * so whatever else the map derives from its grid is kept up to date by the
+ * map itself.
+ *
+ * Only placements made through the journal can be undone, and they must be
+ * undone in the reverse order. The journal doesn't know about the turn or
+ * about how far along a map is in setting up its players, so it should only
+ * be used once every player has placed their first villages and roads, and
+ * whoever ends turns in between placements has to put the turn back too.
+ * Any other sets that the map updates in addToGrid can be passed to the
+ * constructor to have them journaled too.
+ */
+public class MoveJournal<T extends Entity.NegativeSpace> {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final GameMap<T> map;
+	private final CoordinateSet[] tracked;
+	private final long[] before;
+
+	//for each placement: where, what was there before, and where its deltas
+	//start in the deltas array
+	private int[] locs;
+	private Object[] olds;
+	private int[] deltaStarts;
+	private int depth;
+
+	//pairs of (index into tracked words, xor of the word before and after)
+	private long[] deltas;
+	private int deltaCount;
+
+	public MoveJournal(GameMap<T> map, CoordinateSet... extra) {
+		this.map = map;
+		tracked = new CoordinateSet[GameMap.NUM_PLAYERS + extra.length];
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			tracked[i] = map.getPlayer(i).availableMoves;
+		System.arraycopy(extra, 0, tracked, GameMap.NUM_PLAYERS, extra.length);
+		before = new long[tracked.length * CoordinateSet.wordCount()];
+
+		locs = new int[INITIAL_CAPACITY];
+		olds = new Object[INITIAL_CAPACITY];
+		deltaStarts = new int[INITIAL_CAPACITY];
+		deltas = new long[INITIAL_CAPACITY * 2];
+	}
+
+	private void recordDelta(int index, long delta) {
+		if (deltaCount + 2 > deltas.length)
+			deltas = Arrays.copyOf(deltas, deltas.length * 2);
+		deltas[deltaCount++] = index;
+		deltas[deltaCount++] = delta;
+	}
+
+	/**
+	 * Same as map.addToGrid(loc, ent), except it can be undone.
+	 * @return the entity that was there before, or null.
+	 */
+	public T addToGrid(Coordinate.NegativeSpace loc, T ent) {
+		int wordCount = CoordinateSet.wordCount();
+		for (int i = 0, index = 0; i < tracked.length; i++)
+			for (int w = 0; w < wordCount; w++)
+				before[index++] = tracked[i].getWord(w);
+
+		T old = map.addToGrid(loc, ent);
+
+		if (depth == locs.length) {
+			locs = Arrays.copyOf(locs, depth * 2);
+			olds = Arrays.copyOf(olds, depth * 2);
+			deltaStarts = Arrays.copyOf(deltaStarts, depth * 2);
+		}
+		locs[depth] = loc.getId();
+		olds[depth] = old;
+		deltaStarts[depth] = deltaCount;
+		depth++;
+		for (int i = 0, index = 0; i < tracked.length; i++) {
+			for (int w = 0; w < wordCount; w++, index++) {
+				long delta = before[index] ^ tracked[i].getWord(w);
+				if (delta != 0)
+					recordDelta(index, delta);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * Reverts the last placement made through addToGrid() that wasn't undone
+	 * yet.
+	 * @throws IllegalStateException if there is nothing to undo.
+	 */
+	@SuppressWarnings("unchecked")
+	public void undo() {
+		if (depth == 0)
+			throw new IllegalStateException("Nothing to undo");
+
+		depth--;
+		int wordCount = CoordinateSet.wordCount();
+		for (int i = deltaStarts[depth]; i < deltaCount; i += 2) {
+			int index = (int) deltas[i];
+			CoordinateSet set = tracked[index / wordCount];
+			set.setWord(index % wordCount, set.getWord(index % wordCount) ^ deltas[i + 1]);
+		}
+		deltaCount = deltaStarts[depth];
+
+		Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(locs[depth]);
+		T old = (T) olds[depth];
+		olds[depth] = null;
+		map.restoreGrid(loc, old);
+		assert ConsistencyCheck.afterChange(map, loc, false);
+	}
+
+	/**
+	 * Undoes placements until only depth of them are left.
+	 */
+	public void undoTo(int depth) {
+		while (this.depth > depth)
+			undo();
+	}
+
+	/**
+	 * Forgets every placement without undoing them, e.g. after the map was
+	 * copied over.
+	 */
+	public void clear() {
+		Arrays.fill(olds, 0, depth, null);
+		depth = 0;
+		deltaCount = 0;
+	}
+
+	/**
+	 * @return how many placements can be undone.
+	 */
+	public int depth() {
+		return depth;
+	}
+}
@@ -0,0 +1,199 @@
+package in.kevinj.colonists.world;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of MoveJournal on SimulationMaps, from positions of random games
+ * that are set up and a number of moves further. Each benchmark also checks
+ * that undoing leaves exactly the position it started from.
+ */
+public class MoveJournalBenchmark {
+	private final SimulationMap[] roots;
+	private final SimulationMap sim;
+	private final MoveJournal<SimulationMap.Piece> journal;
+	private final CoordinateSet legal;
+	private int mismatches;
+
+	private MoveJournalBenchmark(int positions, Random r) {
+		legal = new CoordinateSet();
+		roots = new SimulationMap[positions];
+		for (int n = 0; n < positions; ) {
+			SimulationMap root = SimulationMap.newGame(r);
+			int extra = 12 + r.nextInt(12);
+			while (!root.isGameOver() && (!root.isSetUp() || extra-- > 0))
+				playRandom(root, r);
+			if (root.isSetUp() && !root.isGameOver())
+				roots[n++] = root;
+		}
+		sim = new SimulationMap(roots[0]);
+		journal = new MoveJournal<SimulationMap.Piece>(sim);
+	}
+
+	/**
+	 * Plays a random legal move, or ends the turn if there is none.
+	 * @return the move, or NO_ID if the turn was ended.
+	 */
+	private int playRandom(SimulationMap map, Random r) {
+		map.getLegalMoves(map.getCurrentPlayerTurn(), legal);
+		if (legal.isEmpty()) {
+			map.endTurn();
+			return Coordinate.NO_ID;
+		}
+		int id = legal.nextId(0);
+		for (int skip = r.nextInt(legal.size()); skip > 0; skip--)
+			id = legal.nextId(id + 1);
+		map.play(id);
+		return id;
+	}
+
+	private static boolean samePosition(SimulationMap a, SimulationMap b) {
+		if (a.getHash() != b.getHash() || a.getCurrentPlayerTurn() != b.getCurrentPlayerTurn())
+			return false;
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			if (!a.getPlayer(i).availableMoves.equals(b.getPlayer(i).availableMoves)
+					|| a.getVillageCount(i) != b.getVillageCount(i) || a.getRoadCount(i) != b.getRoadCount(i))
+				return false;
+		return true;
+	}
+
+	private void check(SimulationMap root) {
+		if (!samePosition(sim, root))
+			mismatches++;
+	}
+
+	/**
+	 * Makes every legal move of the player to move on each position and
+	 * takes it back again, once through the journal and once with
+	 * addToGrid() and removeFromGrid(), which searches for the available
+	 * moves that the removal gives back. On some boards that search gives up
+	 * and clears every player's moves, so the map is copied back after each
+	 * removal, outside of the time.
+	 */
+	private void cycles(int rounds, boolean print) {
+		long journaled = 0, removed = 0, cycles = 0;
+		for (int round = 0; round < rounds; round++) {
+			for (SimulationMap root : roots) {
+				sim.copyFrom(root);
+				journal.clear();
+				int player = root.getCurrentPlayerTurn();
+				root.getLegalMoves(player, legal);
+
+				long start = System.nanoTime();
+				for (int id = legal.nextId(0); id != Coordinate.NO_ID; id = legal.nextId(id + 1)) {
+					Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+					journal.addToGrid(loc, SimulationMap.getPiece(player, loc));
+					journal.undo();
+				}
+				journaled += System.nanoTime() - start;
+				check(root);
+				for (int id = legal.nextId(0); id != Coordinate.NO_ID; id = legal.nextId(id + 1)) {
+					Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+					start = System.nanoTime();
+					sim.addToGrid(loc, SimulationMap.getPiece(player, loc));
+					sim.removeFromGrid(loc);
+					removed += System.nanoTime() - start;
+					sim.copyFrom(root);
+				}
+				cycles += legal.size();
+			}
+		}
+		if (print)
+			System.out.println(String.format("apply+undo %10.0f cycles/s, addToGrid+removeFromGrid %10.0f cycles/s",
+					cycles / (journaled / 1e9), cycles / (removed / 1e9)));
+	}
+
+	/**
+	 * Plays the same random playout of plies moves from each position, and
+	 * puts the map back to the position after it, once by copying the
+	 * position over again like MonteCarloSearch does, and once by undoing the
+	 * playout with the journal.
+	 */
+	private void playouts(int plies, Random r, boolean print) {
+		int[] moves = new int[plies];
+		int[] movers = new int[plies];
+		long copying = 0, undoing = 0;
+		for (SimulationMap root : roots) {
+			//work out the playout first, so that both ways make the same moves
+			sim.copyFrom(root);
+			for (int i = 0; i < plies; i++) {
+				movers[i] = sim.getCurrentPlayerTurn();
+				moves[i] = playRandom(sim, r);
+			}
+
+			long start = System.nanoTime();
+			sim.copyFrom(root);
+			for (int i = 0; i < plies; i++) {
+				if (moves[i] == Coordinate.NO_ID)
+					sim.endTurn();
+				else
+					sim.play(moves[i]);
+			}
+			sim.copyFrom(root);
+			long middle = System.nanoTime();
+			journal.clear();
+			long resumed = System.nanoTime();
+			//the journal doesn't know about turns, so place each player's piece
+			//without ending any
+			for (int i = 0; i < plies; i++) {
+				if (moves[i] != Coordinate.NO_ID) {
+					Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(moves[i]);
+					journal.addToGrid(loc, SimulationMap.getPiece(movers[i], loc));
+				}
+			}
+			journal.undoTo(0);
+			long end = System.nanoTime();
+			copying += middle - start;
+			undoing += end - resumed;
+			check(root);
+		}
+		if (print)
+			System.out.println(String.format("%d plies: %.2f us playing and copying, %.2f us playing and undoing per playout",
+					plies, copying / 1e3 / roots.length, undoing / 1e3 / roots.length));
+	}
+
+	/**
+	 * Usage: MoveJournalBenchmark cycles [positions] [rounds] [seed]
+	 *        MoveJournalBenchmark playout [positions] [plies] [seed]
+	 *
+	 * cycles: prints how many placements a second can be made and taken back
+	 * through the journal, and with addToGrid() and removeFromGrid().
+	 *
+	 * playout: prints how long a playout takes when the map is put back by
+	 * copying the position over again, and when it is put back by undoing.
+	 *
+	 * Both exit with 1 if undoing ever leaves a different position than the
+	 * one it started from.
+	 */
+	public static void main(String[] args) {
+		//removeFromGrid() fails the consistency check on some boards, and the
+		//journal is checked against the position it started from instead
+		ConsistencyCheck.setMode(ConsistencyCheck.Mode.OFF, 0);
+		String mode = args.length > 0 ? args[0] : "cycles";
+		int positions = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		if (mode.equals("cycles")) {
+			int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+			Random r = new Random(args.length > 3 ? Long.parseLong(args[3]) : 42);
+			MoveJournalBenchmark bench = new MoveJournalBenchmark(positions, r);
+			//warm up
+			bench.cycles(rounds / 4 + 1, false);
+			bench.cycles(rounds, true);
+			System.out.println(bench.mismatches + " mismatches");
+			if (bench.mismatches != 0)
+				System.exit(1);
+		} else if (mode.equals("playout")) {
+			int plies = args.length > 2 ? Integer.parseInt(args[2]) : 24;
+			Random r = new Random(args.length > 3 ? Long.parseLong(args[3]) : 42);
+			MoveJournalBenchmark bench = new MoveJournalBenchmark(positions, r);
+			//warm up
+			for (int i = 0; i < 4; i++)
+				bench.playouts(plies, r, false);
+			bench.playouts(plies, r, true);
+			System.out.println(bench.mismatches + " mismatches");
+			if (bench.mismatches != 0)
+				System.exit(1);
+		} else {
+			System.out.println("Usage: MoveJournalBenchmark cycles [positions] [rounds] [seed]");
+			System.out.println("       MoveJournalBenchmark playout [positions] [plies] [seed]");
+		}
+	}
+}
@@ -4,8 +4,8 @@ import java.util.Set;
 
 public abstract class PlayerAction {
 	public static class BeginConsiderMove extends PlayerAction {
-		private final Coordinate.Type type;
-		private final Coordinate coord;
+		private Coordinate.Type type;
+		private Coordinate coord;
 
 		public BeginConsiderMove(GameMap<?> m, Coordinate.Type type, Coordinate coord) {
 			super(m);
@@ -13,6 +13,25 @@ public abstract class PlayerAction {
 			this.coord = coord;
 		}
 
+		/* package-private */ BeginConsiderMove reset(Coordinate.Type type, Coordinate coord) {
+			this.type = type;
+			this.coord = coord;
+			return this;
+		}
+
+		/* package-private */ Coordinate.Type getCoordinateType() {
+			return type;
+		}
+
+		/* package-private */ Coordinate getCoordinate() {
+			return coord;
+		}
+
+		@Override
+		/* package-private */ int getOpcode() {
+			return PlayerActionCodec.OP_BEGIN_CONSIDER;
+		}
+
 		@Override
 		public void update(float tDelta) {
 			switch (type) {
@@ -37,6 +56,15 @@ public abstract class PlayerAction {
 			this.type = type;
 		}
 
+		/* package-private */ Coordinate.Type getCoordinateType() {
+			return type;
+		}
+
+		@Override
+		/* package-private */ int getOpcode() {
+			return PlayerActionCodec.OP_END_CONSIDER;
+		}
+
 		@Override
 		public void update(float tDelta) {
 			switch (type) {
@@ -55,8 +83,8 @@ public abstract class PlayerAction {
 
 	public static abstract class CommitMove<M extends GameMap<E>, E extends Entity.NegativeSpace> extends PlayerAction {
 		protected M model;
-		private final Entity.Type type;
-		private final Coordinate coord;
+		private Entity.Type type;
+		private Coordinate coord;
 
 		public CommitMove(M m, Entity.Type type, Coordinate coord) {
 			super(m);
@@ -65,6 +93,25 @@ public abstract class PlayerAction {
 			this.coord = coord;
 		}
 
+		/* package-private */ CommitMove<M, E> reset(Entity.Type type, Coordinate coord) {
+			this.type = type;
+			this.coord = coord;
+			return this;
+		}
+
+		/* package-private */ Entity.Type getEntityType() {
+			return type;
+		}
+
+		/* package-private */ Coordinate getCoordinate() {
+			return coord;
+		}
+
+		@Override
+		/* package-private */ int getOpcode() {
+			return PlayerActionCodec.OP_COMMIT;
+		}
+
 		protected abstract E createMetro(M model, int player);
 
 		protected abstract E createVillage(M model, int player);
@@ -99,6 +146,11 @@ public abstract class PlayerAction {
 			super(m);
 		}
 
+		@Override
+		/* package-private */ int getOpcode() {
+			return PlayerActionCodec.OP_END_TURN;
+		}
+
 		@Override
 		public void update(float tDelta) {
 			model.endTurn();
@@ -122,5 +174,13 @@ public abstract class PlayerAction {
 		this.model = model;
 	}
 
+	/**
+	 * @return the opcode that {@link PlayerActionCodec} sends this action
+	 * with, or -1 if the action stays local.
+	 */
+	/* package-private */ int getOpcode() {
+		return -1;
+	}
+
 	public abstract void update(float tDelta);
 }
@@ -0,0 +1,177 @@
+package in.kevinj.colonists.world;
+
+import in.kevinj.colonists.Session;
+
+import java.nio.BufferUnderflowException;
+
+/**
+ * Sends each PlayerAction as a packet made up of a one byte opcode and the
+ * action's fields. Coordinates on or next to the board take a single byte,
+ * which is their id. Anything else is escaped and sent in full.
+ *
+ * Decoding allocates nothing. The actions it returns are reused, so each one
+ * must be applied before the next packet is decoded.
+ */
+public class PlayerActionCodec {
+	public static final int OP_BEGIN_CONSIDER = 0;
+	public static final int OP_END_CONSIDER = 1;
+	public static final int OP_COMMIT = 2;
+	public static final int OP_END_TURN = 3;
+
+	private static final int ESCAPED_TILE = 0xFF;
+	private static final int ESCAPED_NEGATIVE_SPACE = 0xFE;
+
+	private static final Entity.Type[] ENTITY_TYPES = Entity.Type.values();
+
+	static {
+		assert Coordinate.idCount() <= ESCAPED_NEGATIVE_SPACE;
+	}
+
+	private interface Encoder {
+		public void encode(PlayerAction move, Session.PacketWriter writer);
+	}
+
+	private interface Decoder {
+		public PlayerAction decode(Session.PacketReader reader);
+	}
+
+	private final Encoder[] encoders;
+	private final Decoder[] decoders;
+
+	private final PlayerAction.BeginConsiderMove beginConsider;
+	private final PlayerAction.EndConsiderMove[] endConsider;
+	private final PlayerAction.CommitMove<?, ?> commit;
+	private final PlayerAction.EndTurn endTurn;
+
+	/**
+	 * @param commit reused for every CommitMove that is received, since only
+	 * the map knows which entities to create.
+	 */
+	public PlayerActionCodec(GameMap<?> model, PlayerAction.CommitMove<?, ?> commit) {
+		beginConsider = new PlayerAction.BeginConsiderMove(model, null, null);
+		Coordinate.Type[] coordTypes = Coordinate.Type.values();
+		endConsider = new PlayerAction.EndConsiderMove[coordTypes.length];
+		for (int i = 0; i < coordTypes.length; i++)
+			endConsider[i] = new PlayerAction.EndConsiderMove(model, coordTypes[i]);
+		this.commit = commit;
+		endTurn = new PlayerAction.EndTurn(model);
+
+		encoders = new Encoder[] {
+			new Encoder() {
+				@Override
+				public void encode(PlayerAction move, Session.PacketWriter writer) {
+					putCoordinate(writer, ((PlayerAction.BeginConsiderMove) move).getCoordinate());
+				}
+			},
+			new Encoder() {
+				@Override
+				public void encode(PlayerAction move, Session.PacketWriter writer) {
+					writer.putByte((byte) ((PlayerAction.EndConsiderMove) move).getCoordinateType().ordinal());
+				}
+			},
+			new Encoder() {
+				@Override
+				public void encode(PlayerAction move, Session.PacketWriter writer) {
+					PlayerAction.CommitMove<?, ?> commit = (PlayerAction.CommitMove<?, ?>) move;
+					writer.putByte((byte) commit.getEntityType().ordinal());
+					putCoordinate(writer, commit.getCoordinate());
+				}
+			},
+			new Encoder() {
+				@Override
+				public void encode(PlayerAction move, Session.PacketWriter writer) {
+					
+				}
+			}
+		};
+		decoders = new Decoder[] {
+			new Decoder() {
+				@Override
+				public PlayerAction decode(Session.PacketReader reader) {
+					Coordinate coord = getCoordinate(reader);
+					return beginConsider.reset(coord.getType(), coord);
+				}
+			},
+			new Decoder() {
+				@Override
+				public PlayerAction decode(Session.PacketReader reader) {
+					return endConsider[reader.getByte()];
+				}
+			},
+			new Decoder() {
+				@Override
+				public PlayerAction decode(Session.PacketReader reader) {
+					Entity.Type type = ENTITY_TYPES[reader.getByte()];
+					return PlayerActionCodec.this.commit.reset(type, getCoordinate(reader));
+				}
+			},
+			new Decoder() {
+				@Override
+				public PlayerAction decode(Session.PacketReader reader) {
+					return endTurn;
+				}
+			}
+		};
+	}
+
+	private static void putCoordinate(Session.PacketWriter writer, Coordinate coord) {
+		int id = coord.getId();
+		if (id != Coordinate.NO_ID) {
+			writer.putByte((byte) id);
+		} else if (coord.getType() == Coordinate.Type.TILE) {
+			Coordinate.PositiveSpace tile = (Coordinate.PositiveSpace) coord;
+			writer.putByte((byte) ESCAPED_TILE);
+			writer.putByte(tile.x);
+			writer.putByte(tile.y);
+		} else {
+			Coordinate.NegativeSpace space = (Coordinate.NegativeSpace) coord;
+			writer.putByte((byte) ESCAPED_NEGATIVE_SPACE);
+			writer.putByte(space.x);
+			writer.putByte(space.xHundredths);
+			writer.putByte(space.y);
+			writer.putByte(space.yHundredths);
+		}
+	}
+
+	private static Coordinate getCoordinate(Session.PacketReader reader) {
+		int id = reader.getByte() & 0xFF;
+		if (id == ESCAPED_TILE) {
+			byte x = reader.getByte();
+			return Coordinate.PositiveSpace.valueOf(x, reader.getByte());
+		}
+		if (id == ESCAPED_NEGATIVE_SPACE) {
+			byte x = reader.getByte(), xHundredths = reader.getByte(), y = reader.getByte();
+			return Coordinate.NegativeSpace.valueOf(x, xHundredths, y, reader.getByte());
+		}
+		return Coordinate.byId(id);
+	}
+
+	/**
+	 * @return false if the action stays local.
+	 */
+	public boolean canEncode(PlayerAction move) {
+		return move.getOpcode() != -1;
+	}
+
+	public void encode(PlayerAction move, Session.PacketWriter writer) {
+		int opcode = move.getOpcode();
+		writer.putByte((byte) opcode);
+		encoders[opcode].encode(move, writer);
+	}
+
+	/**
+	 * @return null if the packet is malformed or has an opcode we don't know.
+	 */
+	public PlayerAction decode(Session.PacketReader reader) {
+		try {
+			int opcode = reader.getByte() & 0xFF;
+			if (opcode >= decoders.length)
+				return null;
+			return decoders[opcode].decode(reader);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return null;
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package in.kevinj.colonists.world;
+
+import java.util.Arrays;
+
+/**
+ * Which players get how much of which resource on each roll of the dice. For
+ * each roll, the index keeps a packed entry for every (player, resource) that
+ * gets anything, so paying out a roll is a scan over a few ints.
+ *
+ * The map that owns the index tells it about every village and metro that is
+ * placed or removed. The highwayman is followed by checking where it is on
+ * every read, so it can be moved without telling the index. The tiles are
+ * only read when the index is made or rebuilt, so a map whose tiles change
+ * has to call rebuild() afterwards.
+ */
+public class ProductionIndex {
+	private static final int ROLLS = 13;
+	private static final MapTile.ResourceType[] RESOURCE_TYPES = MapTile.ResourceType.values();
+	private static final int RESOURCES = RESOURCE_TYPES.length;
+	private static final int ENTRIES_PER_ROLL = GameMap.NUM_PLAYERS * RESOURCES;
+
+	private static final int PLAYER_SHIFT = 8, AMOUNT_SHIFT = 16;
+	private static final int FIELD_MASK = 0xFF;
+
+	private final GameMap<?> map;
+	private final Entity.PositiveSpace highwayman;
+	//chit and resource ordinal of every tile that produces, or -1
+	private final int[] tileChits;
+	private final int[] tileResources;
+	//how many of each player's settlements touch each tile, where a metro
+	//counts twice
+	private final int[] tileAmounts;
+	private int blockedTile;
+
+	//indexed by key(roll, player, resource)
+	private final int[] amounts;
+	private final int[] slots;
+	//ENTRIES_PER_ROLL slots for each roll, the first entryCounts[roll] of
+	//which are used, and the key of each used one
+	private final int[] entries;
+	private final int[] entryKeys;
+	private final int[] entryCounts;
+
+	/**
+	 * Indexes the tiles, settlements and highwayman that are on map right now.
+	 */
+	public ProductionIndex(GameMap<?> map) {
+		this.map = map;
+		highwayman = map.getHighwayman();
+		int tileCount = Coordinate.endId(Coordinate.Type.TILE);
+		tileChits = new int[tileCount];
+		tileResources = new int[tileCount];
+		tileAmounts = new int[tileCount * GameMap.NUM_PLAYERS];
+
+		amounts = new int[ROLLS * ENTRIES_PER_ROLL];
+		slots = new int[amounts.length];
+		entries = new int[ROLLS * ENTRIES_PER_ROLL];
+		entryKeys = new int[entries.length];
+		entryCounts = new int[ROLLS];
+		rebuild();
+	}
+
+	/**
+	 * Indexes the map over again, e.g. after its tiles changed.
+	 */
+	public void rebuild() {
+		int tileCount = Coordinate.endId(Coordinate.Type.TILE);
+		for (int id = Coordinate.firstId(Coordinate.Type.TILE); id < tileCount; id++) {
+			MapTile tile = map.getTile((Coordinate.PositiveSpace) Coordinate.byId(id));
+			if (tile != null && tile.isResource() && tile.getChit() != 0) {
+				tileChits[id] = tile.getChit();
+				tileResources[id] = tile.getResourceType().ordinal();
+			} else {
+				tileChits[id] = -1;
+				tileResources[id] = -1;
+			}
+		}
+		Arrays.fill(tileAmounts, 0);
+		blockedTile = Coordinate.NO_ID;
+
+		Arrays.fill(amounts, 0);
+		Arrays.fill(slots, -1);
+		Arrays.fill(entryCounts, 0);
+
+		EntityGrid<?> grid = map.getEntityGrid();
+		for (int id = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.VERTEX)); id != Coordinate.NO_ID && id < Coordinate.endId(Coordinate.Type.VERTEX); id = grid.nextOccupied(id + 1))
+			settle(id, grid.getOwner(id), amountOf(grid.get(id)));
+		followHighwayman();
+	}
+
+	private static int amountOf(Entity ent) {
+		if (ent == null)
+			return 0;
+		switch (ent.getType()) {
+			case VILLAGE:
+				return 1;
+			case METRO:
+				return 2;
+			default:
+				return 0;
+		}
+	}
+
+	private static int key(int roll, int player, int resource) {
+		return (roll * GameMap.NUM_PLAYERS + player) * RESOURCES + resource;
+	}
+
+	/**
+	 * Adds delta to what player gets of resource on roll, adding the entry if
+	 * it was empty and removing it if it becomes empty.
+	 */
+	private void adjust(int roll, int player, int resource, int delta) {
+		int key = key(roll, player, resource);
+		int amount = amounts[key] += delta;
+		int base = roll * ENTRIES_PER_ROLL;
+		int slot = slots[key];
+		if (amount == 0) {
+			//move the last entry of the roll into the hole
+			int last = --entryCounts[roll];
+			entries[base + slot] = entries[base + last];
+			entryKeys[base + slot] = entryKeys[base + last];
+			slots[entryKeys[base + slot]] = slot;
+			slots[key] = -1;
+			return;
+		}
+		if (slot == -1) {
+			slot = slots[key] = entryCounts[roll]++;
+			entryKeys[base + slot] = key;
+		}
+		entries[base + slot] = amount << AMOUNT_SHIFT | player << PLAYER_SHIFT | resource;
+	}
+
+	/**
+	 * Adds amount to what player gets from every tile around vertex.
+	 */
+	private void settle(int vertex, int player, int amount) {
+		if (amount == 0)
+			return;
+		for (int i = Coordinate.adjacentTileCount(vertex) - 1; i >= 0; i--) {
+			int tile = Coordinate.adjacentTile(vertex, i);
+			if (tile == Coordinate.NO_ID || tileResources[tile] == -1)
+				continue;
+			tileAmounts[tile * GameMap.NUM_PLAYERS + player] += amount;
+			if (tile != blockedTile)
+				adjust(tileChits[tile], player, tileResources[tile], amount);
+		}
+	}
+
+	/**
+	 * Takes everything on the tile out of or back into the index.
+	 */
+	private void block(int tile, int sign) {
+		if (tile == Coordinate.NO_ID || tileResources[tile] == -1)
+			return;
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++) {
+			int amount = tileAmounts[tile * GameMap.NUM_PLAYERS + i];
+			if (amount != 0)
+				adjust(tileChits[tile], i, tileResources[tile], sign * amount);
+		}
+	}
+
+	private void followHighwayman() {
+		Coordinate.PositiveSpace position = highwayman.getPosition();
+		int tile = position == null ? Coordinate.NO_ID : position.getId();
+		if (tile == blockedTile)
+			return;
+		block(blockedTile, 1);
+		blockedTile = tile;
+		block(blockedTile, -1);
+	}
+
+	/**
+	 * Call after the entity at loc went from old to ent, either of which can
+	 * be null. Roads are ignored.
+	 */
+	public void update(Coordinate.NegativeSpace loc, Entity.NegativeSpace old, Entity.NegativeSpace ent) {
+		if (loc.getType() != Coordinate.Type.VERTEX)
+			return;
+		int id = loc.getId();
+		if (old != null)
+			settle(id, old.getPlayer(), -amountOf(old));
+		if (ent != null)
+			settle(id, ent.getPlayer(), amountOf(ent));
+	}
+
+	/**
+	 * @return how many (player, resource) pairs get anything on roll.
+	 */
+	public int getEntryCount(int roll) {
+		followHighwayman();
+		return entryCounts[roll];
+	}
+
+	/**
+	 * @param i from 0 inclusive to getEntryCount(roll) exclusive.
+	 * @return a packed entry, to be read with entryPlayer, entryResource and
+	 * entryAmount.
+	 */
+	public int getEntry(int roll, int i) {
+		followHighwayman();
+		return entries[roll * ENTRIES_PER_ROLL + i];
+	}
+
+	public static int entryPlayer(int entry) {
+		return entry >>> PLAYER_SHIFT & FIELD_MASK;
+	}
+
+	public static MapTile.ResourceType entryResource(int entry) {
+		return RESOURCE_TYPES[entry & FIELD_MASK];
+	}
+
+	public static int entryAmount(int entry) {
+		return entry >>> AMOUNT_SHIFT;
+	}
+
+	/**
+	 * Adds what every player gets on roll to out, which is indexed by
+	 * player * ResourceType.values().length + resource ordinal.
+	 */
+	public void payout(int roll, int[] out) {
+		followHighwayman();
+		for (int i = roll * ENTRIES_PER_ROLL, end = i + entryCounts[roll]; i < end; i++) {
+			int entry = entries[i];
+			out[(entry >>> PLAYER_SHIFT & FIELD_MASK) * RESOURCES + (entry & FIELD_MASK)] += entry >>> AMOUNT_SHIFT;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package in.kevinj.colonists.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks ProductionIndex against walking every settlement on the map and
+ * every tile around it, which is how a roll was paid out before the index.
+ */
+public class ProductionIndexCheck {
+	private static final int RESOURCES = MapTile.ResourceType.values().length;
+
+	/**
+	 * Thrown when the index pays out something else than the walk.
+	 */
+	private static class MismatchException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public MismatchException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Adds what every player gets on roll to out, the slow way.
+	 */
+	private static void walk(GameMap<?> map, int roll, int[] out) {
+		for (Map.Entry<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> entry : map.getGrid().entrySet()) {
+			Entity.NegativeSpace ent = entry.getValue();
+			int amount = ent.getType() == Entity.Type.METRO ? 2 : ent.getType() == Entity.Type.VILLAGE ? 1 : 0;
+			if (amount == 0)
+				continue;
+			for (Coordinate.PositiveSpace coord : entry.getKey().adjacentTiles()) {
+				MapTile tile = map.getTile(coord);
+				if (tile != null && tile.isResource() && tile.getChit() == roll && !coord.equals(map.getHighwayman().getPosition()))
+					out[ent.getPlayer() * RESOURCES + tile.getResourceType().ordinal()] += amount;
+			}
+		}
+	}
+
+	/**
+	 * @return the id of a random one of the set's ids. set must not be empty.
+	 */
+	private static int randomId(CoordinateSet set, Random r) {
+		int id = set.nextId(0);
+		for (int skip = r.nextInt(set.size()); skip > 0; skip--)
+			id = set.nextId(id + 1);
+		return id;
+	}
+
+	/**
+	 * @return the number of rolls checked.
+	 * @throws MismatchException if the index and the walk ever disagree.
+	 */
+	private static long check(int games, Random r) {
+		int[] indexed = new int[GameMap.NUM_PLAYERS * RESOURCES];
+		int[] walked = new int[indexed.length];
+		int[] entries = new int[indexed.length];
+		CoordinateSet legal = new CoordinateSet();
+		List<Coordinate.PositiveSpace> land = new ArrayList<Coordinate.PositiveSpace>();
+		for (int y = 0; y < MapGenerator.SIZE; y++)
+			for (int x = 0; x < MapGenerator.SIZE; x++)
+				if (Coordinate.PositiveSpace.valueOf(x, y).inBounds())
+					land.add(Coordinate.PositiveSpace.valueOf(x, y));
+
+		long checks = 0;
+		for (int g = 0; g < games; g++) {
+			SimulationMap map = SimulationMap.newGame(r);
+			EntityGrid<SimulationMap.Piece> grid = map.getEntityGrid();
+			ProductionIndex index = null;
+			for (int step = 0; step < 80 && !map.isGameOver(); step++) {
+				//place, swap a village and metro, take a piece away, or move the
+				//highwayman, and tell the index about it like a map would. pieces
+				//that others depend on are taken away too, which leaves boards
+				//that the game can't reach, so the consistency check is off
+				int op = r.nextInt(10);
+				Coordinate.NegativeSpace loc = null;
+				Entity.NegativeSpace old = null, ent = null;
+				if (op < 6 || index == null || !map.isSetUp()) {
+					map.getLegalMoves(map.getCurrentPlayerTurn(), legal);
+					if (legal.isEmpty()) {
+						map.endTurn();
+						continue;
+					}
+					int id = randomId(legal, r);
+					loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+					old = grid.get(loc);
+					map.play(id);
+					ent = grid.get(loc);
+				} else if (op < 8) {
+					int id = grid.nextOccupied(r.nextInt(Coordinate.idCount()));
+					if (id == Coordinate.NO_ID || id >= Coordinate.endId(Coordinate.Type.VERTEX))
+						continue;
+					loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+					old = grid.get(id);
+					ent = SimulationMap.getPiece(old.getPlayer(), old.getType() == Entity.Type.METRO ? Entity.Type.VILLAGE : Entity.Type.METRO);
+					map.addToGrid(loc, (SimulationMap.Piece) ent);
+				} else if (op < 9) {
+					int id = grid.nextOccupied(r.nextInt(Coordinate.idCount()));
+					if (id == Coordinate.NO_ID)
+						continue;
+					loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+					old = grid.get(id);
+					map.removeFromGrid(loc);
+				} else {
+					map.getHighwayman().setPosition(r.nextInt(5) == 0 ? null : land.get(r.nextInt(land.size())));
+				}
+				if (index == null) {
+					if (map.isSetUp())
+						index = new ProductionIndex(map);
+				} else if (loc != null) {
+					index.update(loc, old, ent);
+				}
+				if (index == null)
+					continue;
+				if (r.nextInt(7) == 0)
+					index.rebuild();
+
+				for (int roll = 2; roll <= 12; roll++) {
+					Arrays.fill(indexed, 0);
+					Arrays.fill(walked, 0);
+					Arrays.fill(entries, 0);
+					index.payout(roll, indexed);
+					walk(map, roll, walked);
+					for (int i = 0; i < index.getEntryCount(roll); i++) {
+						int entry = index.getEntry(roll, i);
+						if (ProductionIndex.entryAmount(entry) <= 0)
+							throw new MismatchException("Empty entry for roll " + roll + " in game " + g + ", step " + step);
+						entries[ProductionIndex.entryPlayer(entry) * RESOURCES + ProductionIndex.entryResource(entry).ordinal()] += ProductionIndex.entryAmount(entry);
+					}
+					if (!Arrays.equals(indexed, walked) || !Arrays.equals(entries, walked))
+						throw new MismatchException("Roll " + roll + " in game " + g + ", step " + step + ": paid " + Arrays.toString(indexed)
+								+ ", entries " + Arrays.toString(entries) + ", expected " + Arrays.toString(walked));
+					checks++;
+				}
+			}
+		}
+		return checks;
+	}
+
+	/**
+	 * Usage: ProductionIndexCheck [games] [seed]
+	 *
+	 * Plays random placements, village and metro swaps, removals and
+	 * highwayman moves, including off the map, keeping an index up to date
+	 * and now and then rebuilding it, and checks every roll against the walk
+	 * after each change. Then times paying out a roll both ways on a full
+	 * map. Exits with 1 if they ever disagree.
+	 */
+	public static void main(String[] args) {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		Random r = new Random(args.length > 1 ? Long.parseLong(args[1]) : 3);
+		ConsistencyCheck.setMode(ConsistencyCheck.Mode.OFF, 0);
+
+		try {
+			System.out.println(check(games, r) + " rolls checked");
+		} catch (MismatchException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		SimulationMap map = SimulationMap.newGame(r);
+		CoordinateSet legal = new CoordinateSet();
+		while (!map.isGameOver()) {
+			map.getLegalMoves(map.getCurrentPlayerTurn(), legal);
+			if (legal.isEmpty())
+				map.endTurn();
+			else
+				map.play(legal.nextId(0));
+		}
+		ProductionIndex index = new ProductionIndex(map);
+		int[] out = new int[GameMap.NUM_PLAYERS * RESOURCES];
+		int rolls = 2000000;
+		for (int pass = 0; pass < 2; pass++) {
+			//the first pass warms up
+			long start = System.nanoTime();
+			for (int i = 0; i < rolls; i++)
+				index.payout(2 + i % 11, out);
+			long middle = System.nanoTime();
+			for (int i = 0; i < rolls / 10; i++)
+				walk(map, 2 + i % 11, out);
+			long end = System.nanoTime();
+			if (pass != 0)
+				System.out.println(String.format("%.1f ns indexed, %.1f ns walking per roll (%d)", (middle - start) / (double) rolls, (end - middle) / (rolls / 10d), out[0]));
+		}
+	}
+}
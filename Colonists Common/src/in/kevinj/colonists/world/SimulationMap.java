@@ -0,0 +1,478 @@
+package in.kevinj.colonists.world;
+
+import in.kevinj.colonists.Player;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A map with nothing but the rules, for the AI to play out games on and for
+ * running games without a screen. It only depends on Colonists Common.
+ *
+ * Each player can place at most VILLAGE_SUPPLY villages and ROAD_SUPPLY
+ * roads, counting the ones placed during setup, and the game is over once
+ * nobody can place anything more. Without dice or resources, a player's score
+ * is how much their villages would produce: the pips of every resource tile
+ * next to each of them.
+ *
+ * Pieces are shared between every map, so unlike the pieces of other maps
+ * they don't know where they are.
+ */
+public class SimulationMap implements GameMap<SimulationMap.Piece> {
+	public static final int VILLAGE_SUPPLY = 5;
+	public static final int ROAD_SUPPLY = 15;
+
+	/**
+	 * Rows and columns of the tiles that GameMap.Helper.initializeMap() fills.
+	 */
+	private static final int MAP_SIZE = 7;
+
+	public static class Piece implements Entity.NegativeSpace {
+		private final Entity.Type type;
+		private final int player;
+
+		private Piece(Entity.Type type, int player) {
+			this.type = type;
+			this.player = player;
+		}
+
+		@Override
+		public void update(float tDelta) {
+
+		}
+
+		@Override
+		public Entity.Type getType() {
+			return type;
+		}
+
+		@Override
+		public int getPlayer() {
+			return player;
+		}
+
+		@Override
+		public Coordinate.NegativeSpace getPosition() {
+			return null;
+		}
+
+		@Override
+		public void setPosition(Coordinate.NegativeSpace coord) {
+
+		}
+	}
+
+	private static class Highwayman implements Entity.Highwayman {
+		private Coordinate.PositiveSpace position;
+
+		@Override
+		public void update(float tDelta) {
+
+		}
+
+		@Override
+		public Entity.Type getType() {
+			return Entity.Type.HIGHWAYMAN;
+		}
+
+		@Override
+		public Coordinate.PositiveSpace getPosition() {
+			return position;
+		}
+
+		@Override
+		public void setPosition(Coordinate.PositiveSpace coord) {
+			position = coord;
+		}
+	}
+
+	private static class SimulatedPlayer extends Player {
+		public SimulatedPlayer() {
+			super(null, new CoordinateSet());
+		}
+
+		@Override
+		public void sendMove(PlayerAction move) {
+
+		}
+	}
+
+	private static final Piece[] PIECES;
+	private static final CoordinateSet VERTICES, EDGES;
+
+	static {
+		Entity.Type[] types = Entity.Type.values();
+		PIECES = new Piece[GameMap.NUM_PLAYERS * types.length];
+		for (int i = 0; i < GameMap.NUM_PLAYERS; i++)
+			for (int j = 0; j < types.length; j++)
+				PIECES[i * types.length + j] = new Piece(types[j], i);
+
+		VERTICES = new CoordinateSet();
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endId(Coordinate.Type.VERTEX); id++)
+			VERTICES.addId(id);
+		EDGES = new CoordinateSet();
+		for (int id = Coordinate.firstId(Coordinate.Type.EDGE); id < Coordinate.endId(Coordinate.Type.EDGE); id++)
+			EDGES.addId(id);
+	}
+
+	public static Piece getPiece(int player, Entity.Type type) {
+		return PIECES[player * Entity.Type.values().length + type.ordinal()];
+	}
+
+	private final MapTile[] tiles;
+	private final int[] production;
+	private long layoutHash;
+	private final Highwayman highwayman;
+	private final EntityGrid<Piece> grid;
+
+	private final int[] initializeGridStages;
+	private final CoordinateSet availableVertices;
+	private final int[] villages, roads;
+
+	private final Player[] players;
+	private int currentPlayerTurn;
+
+	private SimulationMap() {
+		tiles = new MapTile[Coordinate.endId(Coordinate.Type.TILE)];
+		production = new int[Coordinate.idCount()];
+		highwayman = new Highwayman();
+		grid = new EntityGrid<Piece>();
+		initializeGridStages = new int[NUM_PLAYERS];
+		availableVertices = new CoordinateSet();
+		villages = new int[NUM_PLAYERS];
+		roads = new int[NUM_PLAYERS];
+		players = new Player[NUM_PLAYERS];
+		for (int i = 0; i < NUM_PLAYERS; i++)
+			players[i] = new SimulatedPlayer();
+	}
+
+	/**
+	 * Starts a new game on the given tiles.
+	 * @param resources indexed by [y][x], like the map that
+	 * {@link GameMap.Helper#initializeMap} makes.
+	 */
+	public SimulationMap(MapTile[][] resources, Coordinate.PositiveSpace highwaymanPosition) {
+		this();
+		for (int y = 0; y < resources.length; y++)
+			for (int x = 0; x < resources[y].length; x++)
+				if (resources[y][x] != null)
+					setTile(Coordinate.PositiveSpace.valueOf(x, y), resources[y][x]);
+		layoutHash = ZobristHash.layout(resources);
+		computeProduction();
+		highwayman.setPosition(highwaymanPosition);
+		availableVertices.addAll(Coordinate.NegativeSpace.allVertices());
+		ensureInitialized(0);
+	}
+
+	/**
+	 * Starts a new game on a random map.
+	 */
+	public static SimulationMap newGame(Random random) {
+		MapTile[][] resources = new MapTile[MAP_SIZE][MAP_SIZE];
+		Highwayman highwayman = new Highwayman();
+		GameMap.Helper.initializeMap(resources, highwayman, random);
+		return new SimulationMap(resources, highwayman.getPosition());
+	}
+
+	/**
+	 * Copies the position on any other map, e.g. so that the AI can search
+	 * from it without touching the map that is on screen.
+	 */
+	public SimulationMap(GameMap<?> map) {
+		this();
+		MapTile[][] resources = new MapTile[MAP_SIZE][MAP_SIZE];
+		for (int id = Coordinate.firstId(Coordinate.Type.TILE); id < Coordinate.endId(Coordinate.Type.TILE); id++) {
+			Coordinate.PositiveSpace coord = (Coordinate.PositiveSpace) Coordinate.byId(id);
+			MapTile tile = map.getTile(coord);
+			if (tile != null) {
+				setTile(coord, tile);
+				if (coord.y >= 0 && coord.y < resources.length && coord.x >= 0 && coord.x < resources[coord.y].length)
+					resources[coord.y][coord.x] = tile;
+			}
+		}
+		layoutHash = ZobristHash.layout(resources);
+		computeProduction();
+		highwayman.setPosition(map.getHighwayman().getPosition());
+
+		for (Map.Entry<Coordinate.NegativeSpace, ? extends Entity.NegativeSpace> entry : map.getGrid().entrySet()) {
+			Entity.NegativeSpace ent = entry.getValue();
+			grid.put(entry.getKey(), getPiece(ent.getPlayer(), ent.getType()));
+			if (ent.getType() == Entity.Type.ROAD)
+				roads[ent.getPlayer()]++;
+			else
+				villages[ent.getPlayer()]++;
+		}
+		for (int i = 0; i < NUM_PLAYERS; i++)
+			players[i].availableMoves.copyFrom(map.getPlayer(i).availableMoves);
+		currentPlayerTurn = map.getCurrentPlayerTurn();
+
+		//the setup stages aren't part of GameMap, but can be worked out from
+		//the pieces since each stage places one of them
+		for (int i = 0; i < NUM_PLAYERS; i++) {
+			int placed = villages[i] + roads[i];
+			if (placed != 0)
+				initializeGridStages[i] = Math.min(5, placed + 1);
+			else if (i == currentPlayerTurn)
+				initializeGridStages[i] = 1;
+		}
+		//every vertex that isn't taken or next to one that is
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endInBoundsId(Coordinate.Type.VERTEX); id++) {
+			boolean available = !grid.isOccupied(id);
+			for (int i = Coordinate.adjacentVertexCount(id) - 1; i >= 0 && available; i--)
+				available = !grid.isOccupied(Coordinate.adjacentVertex(id, i));
+			if (available)
+				availableVertices.addId(id);
+		}
+	}
+
+	public SimulationMap(SimulationMap other) {
+		this();
+		copyFrom(other);
+	}
+
+	/**
+	 * Makes this map hold the same game as other, without allocating.
+	 */
+	public void copyFrom(SimulationMap other) {
+		System.arraycopy(other.tiles, 0, tiles, 0, tiles.length);
+		System.arraycopy(other.production, 0, production, 0, production.length);
+		layoutHash = other.layoutHash;
+		highwayman.setPosition(other.highwayman.getPosition());
+		grid.copyFrom(other.grid);
+		System.arraycopy(other.initializeGridStages, 0, initializeGridStages, 0, NUM_PLAYERS);
+		availableVertices.copyFrom(other.availableVertices);
+		System.arraycopy(other.villages, 0, villages, 0, NUM_PLAYERS);
+		System.arraycopy(other.roads, 0, roads, 0, NUM_PLAYERS);
+		for (int i = 0; i < NUM_PLAYERS; i++)
+			players[i].availableMoves.copyFrom(other.players[i].availableMoves);
+		currentPlayerTurn = other.currentPlayerTurn;
+	}
+
+	private void setTile(Coordinate.PositiveSpace coord, MapTile tile) {
+		int id = coord.getId();
+		if (id != Coordinate.NO_ID)
+			tiles[id] = tile;
+	}
+
+	private void computeProduction() {
+		for (int id = Coordinate.firstId(Coordinate.Type.VERTEX); id < Coordinate.endId(Coordinate.Type.VERTEX); id++) {
+			for (int i = Coordinate.adjacentTileCount(id) - 1; i >= 0; i--) {
+				int tile = Coordinate.adjacentTile(id, i);
+				if (tile != Coordinate.NO_ID && tiles[tile] != null && tiles[tile].isResource())
+					production[id] += tiles[tile].getPips();
+			}
+		}
+	}
+
+	private void ensureInitialized(int player) {
+		if (initializeGridStages[player] == 0) {
+			GameMap.Helper.initialAddToGrid(this, null, player, 0, availableVertices);
+			initializeGridStages[player]++;
+		}
+	}
+
+	@Override
+	public Map<Coordinate.NegativeSpace, Piece> getGrid() {
+		return grid.asMap();
+	}
+
+	@Override
+	public EntityGrid<Piece> getEntityGrid() {
+		return grid;
+	}
+
+	@Override
+	public Piece addToGrid(Coordinate.NegativeSpace loc, Piece ent) {
+		Piece old = grid.put(loc, ent);
+		if (old != null)
+			count(old, -1);
+		count(ent, 1);
+		Integer deltaTurn;
+		if ((deltaTurn = GameMap.Helper.initialAddToGrid(this, loc, ent.getPlayer(), initializeGridStages[ent.getPlayer()], availableVertices)) != null) {
+			initializeGridStages[ent.getPlayer()]++;
+			currentPlayerTurn = ent.getPlayer() + deltaTurn.intValue();
+			ensureInitialized(currentPlayerTurn);
+		} else {
+			GameMap.Helper.incrementalUpdateAfterAddToGrid(this, loc, ent);
+		}
+		return old;
+	}
+
+	@Override
+	public Entity removeFromGrid(Coordinate.NegativeSpace loc) {
+		Piece old = grid.remove(loc);
+		if (old == null)
+			return null; //no changes made
+		count(old, -1);
+		GameMap.Helper.incrementalUpdateAfterRemoveFromGrid(this, loc, old);
+		return old;
+	}
+
+	@Override
+	public Piece restoreGrid(Coordinate.NegativeSpace loc, Piece old) {
+		Piece ent = old == null ? grid.remove(loc) : grid.put(loc, old);
+		if (ent != null)
+			count(ent, -1);
+		if (old != null)
+			count(old, 1);
+		return ent;
+	}
+
+	private void count(Piece piece, int delta) {
+		if (piece.getType() == Entity.Type.ROAD)
+			roads[piece.getPlayer()] += delta;
+		else
+			villages[piece.getPlayer()] += delta;
+	}
+
+	@Override
+	public int getCurrentPlayerTurn() {
+		return currentPlayerTurn;
+	}
+
+	@Override
+	public long getHash() {
+		return grid.getHash() ^ layoutHash ^ ZobristHash.turn(currentPlayerTurn) ^ ZobristHash.highwayman(highwayman.getPosition());
+	}
+
+	@Override
+	public Player getPlayer(int id) {
+		return players[id];
+	}
+
+	@Override
+	public Entity.PositiveSpace getHighwayman() {
+		return highwayman;
+	}
+
+	@Override
+	public MapTile getTile(Coordinate.PositiveSpace coord) {
+		if (coord == null)
+			return null;
+		int id = coord.getId();
+		if (id == Coordinate.NO_ID)
+			return null;
+		return tiles[id];
+	}
+
+	/**
+	 * @return the tile with the given id, or null.
+	 */
+	public MapTile getTile(int id) {
+		return tiles[id];
+	}
+
+	@Override
+	public void setHighwaymanCandidate(Coordinate.PositiveSpace coord) {
+
+	}
+
+	@Override
+	public void setRoadCandidate(Coordinate.NegativeSpace coord) {
+
+	}
+
+	@Override
+	public void setMetroCandidate(Coordinate.NegativeSpace coord) {
+
+	}
+
+	@Override
+	public void setVillageCandidate(Coordinate.NegativeSpace coord) {
+
+	}
+
+	@Override
+	public void endTurn() {
+		if (initializeGridStages[currentPlayerTurn] > 4)
+			currentPlayerTurn = (currentPlayerTurn + 1) % NUM_PLAYERS;
+	}
+
+	/**
+	 * @return true once every player placed their first villages and roads.
+	 */
+	public boolean isSetUp() {
+		for (int i = 0; i < NUM_PLAYERS; i++)
+			if (initializeGridStages[i] <= 4)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Fills out with the ids of every place the player can put a piece on,
+	 * i.e. their available moves minus the kinds of pieces they ran out of.
+	 */
+	public void getLegalMoves(int player, CoordinateSet out) {
+		out.copyFrom(players[player].availableMoves);
+		if (villages[player] >= VILLAGE_SUPPLY)
+			out.andNot(VERTICES);
+		if (roads[player] >= ROAD_SUPPLY)
+			out.andNot(EDGES);
+	}
+
+	public boolean hasLegalMoves(int player) {
+		CoordinateSet available = players[player].availableMoves;
+		boolean canVillage = villages[player] < VILLAGE_SUPPLY, canRoad = roads[player] < ROAD_SUPPLY;
+		for (int w = CoordinateSet.wordCount() - 1; w >= 0; w--) {
+			long mask = (canVillage ? VERTICES.getWord(w) : 0) | (canRoad ? EDGES.getWord(w) : 0);
+			if ((available.getWord(w) & mask) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	public boolean isGameOver() {
+		for (int i = 0; i < NUM_PLAYERS; i++)
+			if (hasLegalMoves(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Puts a piece of the current player on the vertex or edge with the given
+	 * id, and then ends their turn once setup is over. During setup, turns
+	 * move on by themselves. id must be one of getLegalMoves().
+	 */
+	public void play(int id) {
+		boolean setUp = isSetUp();
+		Coordinate.NegativeSpace loc = (Coordinate.NegativeSpace) Coordinate.byId(id);
+		addToGrid(loc, getPiece(currentPlayerTurn, loc));
+		if (setUp)
+			endTurn();
+	}
+
+	/**
+	 * @return the road or village of player that play() puts on loc.
+	 */
+	public static Piece getPiece(int player, Coordinate.NegativeSpace loc) {
+		return getPiece(player, loc.getType() == Coordinate.Type.EDGE ? Entity.Type.ROAD : Entity.Type.VILLAGE);
+	}
+
+	/**
+	 * @return the pips of the resource tiles next to the vertex with the
+	 * given id.
+	 */
+	public int getProduction(int id) {
+		return production[id];
+	}
+
+	public int getVillageCount(int player) {
+		return villages[player];
+	}
+
+	public int getRoadCount(int player) {
+		return roads[player];
+	}
+
+	/**
+	 * @return the sum of the production of the player's villages, where a
+	 * metro counts twice.
+	 */
+	public int getScore(int player) {
+		int score = 0;
+		for (int id = grid.nextOccupied(Coordinate.firstId(Coordinate.Type.VERTEX)); id != Coordinate.NO_ID && id < Coordinate.endId(Coordinate.Type.VERTEX); id = grid.nextOccupied(id + 1))
+			if (grid.getOwner(id) == player)
+				score += grid.get(id).getType() == Entity.Type.METRO ? 2 * production[id] : production[id];
+		return score;
+	}
+}
@@ -0,0 +1,94 @@
+package in.kevinj.colonists.world;
+
+/**
+ * 64-bit Zobrist keys for board positions. A position's hash is the xor of the
+ * keys of everything in it, so it can be kept up to date by xoring a key in
+ * when something is placed and out again when it is taken away.
+ *
+ * The keys are generated from a fixed seed, so hashes are the same in every
+ * process and can be saved, e.g. in an opening book.
+ */
+public class ZobristHash {
+	private static final long SEED = 0x636F6C6F6E697374L;
+
+	private static final int ENTITY_TYPES = Entity.Type.values().length;
+
+	private static final long[] PIECES;
+	private static final long[] HIGHWAYMAN;
+	private static final long[] TURN;
+
+	private static long nextKey = SEED;
+
+	static {
+		PIECES = new long[Coordinate.idCount() * GameMap.NUM_PLAYERS * ENTITY_TYPES];
+		for (int i = 0; i < PIECES.length; i++)
+			PIECES[i] = nextKey();
+		HIGHWAYMAN = new long[Coordinate.endId(Coordinate.Type.TILE)];
+		for (int i = 0; i < HIGHWAYMAN.length; i++)
+			HIGHWAYMAN[i] = nextKey();
+		TURN = new long[GameMap.NUM_PLAYERS];
+		for (int i = 0; i < TURN.length; i++)
+			TURN[i] = nextKey();
+	}
+
+	private ZobristHash() {
+	}
+
+	/**
+	 * splitmix64, which unlike java.util.Random gives every key all 64 bits.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long nextKey() {
+		return mix(nextKey += 0x9E3779B97F4A7C15L);
+	}
+
+	/**
+	 * @param id the id of the vertex or edge that the piece is on.
+	 */
+	public static long piece(int id, int player, Entity.Type type) {
+		return PIECES[(id * GameMap.NUM_PLAYERS + player) * ENTITY_TYPES + type.ordinal()];
+	}
+
+	/**
+	 * @return 0 if coord is null, i.e. the highwayman is not on the board.
+	 */
+	public static long highwayman(Coordinate.PositiveSpace coord) {
+		if (coord == null)
+			return 0;
+		int id = coord.getId();
+		if (id == Coordinate.NO_ID)
+			return mix(SEED ^ coord.x << 8 ^ coord.y & 0xFF);
+		return HIGHWAYMAN[id];
+	}
+
+	public static long turn(int player) {
+		return TURN[player];
+	}
+
+	/**
+	 * Tiles never change once the map is made, so this is only computed once
+	 * per map and doesn't need a table of keys.
+	 */
+	public static long layout(MapTile[][] resources) {
+		long hash = 0;
+		for (int y = 0; y < resources.length; y++) {
+			for (int x = 0; x < resources[y].length; x++) {
+				MapTile tile = resources[y][x];
+				if (tile == null)
+					continue;
+				long key = (long) y << 8 | x;
+				if (tile.isResource())
+					key = key << 8 | tile.getResourceType().ordinal() << 4 | tile.getChit();
+				else
+					key = (key << 8 | 0x80 | tile.getPortType().ordinal()) << 16 | Math.round(tile.getRotation()) & 0xFFFF;
+				hash ^= mix(SEED ^ mix(key));
+			}
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,129 @@
+package in.kevinj.colonists.server;
+
+import in.kevinj.colonists.NioSession;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Multiplexes any number of sessions over a single Selector. Idle sessions
+ * cost nothing but their registration since the thread blocks in select()
+ * until one of them is ready.
+ */
+/* package-private */ class SelectorThread implements Runnable {
+	private final SessionHandler handler;
+	private final Selector selector;
+	private final Queue<SocketChannel> pendingRegistrations;
+	private volatile boolean running;
+
+	/* package-private */ SelectorThread(SessionHandler handler) throws IOException {
+		this.handler = handler;
+		selector = Selector.open();
+		pendingRegistrations = new ConcurrentLinkedQueue<SocketChannel>();
+		running = true;
+	}
+
+	/**
+	 * Thread-safe. Channels can only be registered by the thread that selects
+	 * on the selector without racing select(), so queue it and wake us up.
+	 */
+	/* package-private */ void register(SocketChannel channel) {
+		pendingRegistrations.add(channel);
+		selector.wakeup();
+	}
+
+	private void processRegistrations() {
+		SocketChannel channel;
+		while ((channel = pendingRegistrations.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				handler.sessionOpened(NioSession.attach(channel.register(selector, SelectionKey.OP_READ)));
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					
+				}
+			}
+		}
+	}
+
+	private void processSelectedKeys() {
+		for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+			SelectionKey key = iter.next();
+			iter.remove();
+			NioSession ses = (NioSession) key.attachment();
+			try {
+				if (ses.processReadyOps()) {
+					handler.sessionReadable(ses);
+					//send all replies to the packets we just handled at once
+					ses.flush();
+				}
+			} catch (RuntimeException e) {
+				//don't let one bad session take down everyone on this selector
+				e.printStackTrace();
+				ses.close();
+			}
+			if (!ses.isOpen()) {
+				handler.sessionClosed(ses);
+				//closing the channel cancelled the key, but it stays in keys()
+				//until the next select(), so make sure closeAll() skips it
+				key.attach(null);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				processRegistrations();
+				processSelectedKeys();
+			}
+		} catch (ClosedSelectorException e) {
+			// shut down
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void closeAll() {
+		SocketChannel channel;
+		while ((channel = pendingRegistrations.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				
+			}
+		}
+		if (selector.isOpen()) {
+			for (SelectionKey key : selector.keys()) {
+				NioSession ses = (NioSession) key.attachment();
+				if (ses != null) {
+					ses.close();
+					handler.sessionClosed(ses);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				
+			}
+		}
+	}
+
+	/* package-private */ void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
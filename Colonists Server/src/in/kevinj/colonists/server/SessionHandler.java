@@ -0,0 +1,21 @@
+package in.kevinj.colonists.server;
+
+import in.kevinj.colonists.Session;
+
+/**
+ * Callbacks from a {@link SessionReactor}. All methods for a given session are
+ * invoked on the selector thread that owns it, so implementations must not
+ * block. Hand anything expensive off to a match thread.
+ */
+public interface SessionHandler {
+	public void sessionOpened(Session ses);
+
+	/**
+	 * The session has data waiting. Call {@link Session#readAll} once, or
+	 * {@link Session#read()} until it returns null. Packets written here are
+	 * flushed once this returns.
+	 */
+	public void sessionReadable(Session ses);
+
+	public void sessionClosed(Session ses);
+}
@@ -0,0 +1,226 @@
+package in.kevinj.colonists.server;
+
+import in.kevinj.colonists.Session;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts clients for as long as the server is up and spreads their
+ * connections over a small fixed set of {@link SelectorThread}s, so that the
+ * number of threads and selectors does not grow with the number of sessions.
+ */
+public class SessionReactor {
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	private final SessionHandler handler;
+	private final SelectorThread[] selectors;
+	private ServerSocketChannel acceptor;
+	private int nextSelector;
+
+	public SessionReactor(SessionHandler handler, int selectorThreads) {
+		this.handler = handler;
+		selectors = new SelectorThread[selectorThreads];
+	}
+
+	public SessionReactor(SessionHandler handler) {
+		this(handler, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	public void bind(SocketAddress addr) throws IOException {
+		acceptor = ServerSocketChannel.open();
+		try {
+			acceptor.socket().setReuseAddress(true);
+			acceptor.socket().bind(addr, 1024);
+
+			for (int i = 0; i < selectors.length; i++) {
+				selectors[i] = new SelectorThread(handler);
+				new Thread(selectors[i], "session-selector-" + i).start();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "session-acceptor").start();
+	}
+
+	/**
+	 * The acceptor is the only blocking channel. It does nothing but hand off
+	 * new connections round robin. A connection that fails on its way in is
+	 * dropped without taking the acceptor down with it, and only closing the
+	 * acceptor stops the loop.
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel client = null;
+			try {
+				client = acceptor.accept();
+				client.socket().setTcpNoDelay(true);
+				selectors[nextSelector].register(client);
+				nextSelector = (nextSelector + 1) % selectors.length;
+			} catch (ClosedChannelException e) {
+				// shut down, including the AsynchronousCloseException from close()
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (client != null) {
+					try {
+						client.close();
+					} catch (IOException ex) {
+						
+					}
+				} else if (e.getMessage() != null && e.getMessage().contains("Too many open files")) {
+					//the connection stays in the backlog, so accepting again
+					//right away would just spin until some session closes
+					try {
+						Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	public void close() {
+		if (acceptor != null) {
+			try {
+				acceptor.close();
+			} catch (IOException ex) {
+				
+			}
+		}
+		for (int i = 0; i < selectors.length; i++)
+			if (selectors[i] != null)
+				selectors[i].shutdown();
+		acceptor = null;
+	}
+
+	private static long cpuTime(ThreadMXBean threads) {
+		long total = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long t = threads.getThreadCpuTime(id);
+			if (t > 0)
+				total += t;
+		}
+		return total;
+	}
+
+	/**
+	 * Usage: SessionReactor [idle sessions] [seconds] [active clients]
+	 *
+	 * Echoes 4-byte packets on a loopback port. Opens the given number of idle
+	 * sessions and prints how much CPU the process burns while they sit
+	 * there, then has a few of them ping-pong as fast as they can and prints
+	 * the round trips a second, which should not depend on how many others
+	 * are idle. Each session takes two descriptors in this process, so raise
+	 * ulimit -n to go much past 500.
+	 */
+	public static void main(String[] args) throws Exception {
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		int active = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		final AtomicInteger opened = new AtomicInteger();
+		SessionReactor reactor = new SessionReactor(new SessionHandler() {
+			@Override
+			public void sessionOpened(Session ses) {
+				opened.incrementAndGet();
+			}
+
+			@Override
+			public void sessionReadable(final Session ses) {
+				ses.readAll(new Session.PacketHandler() {
+					@Override
+					public void handle(Session.PacketReader reader) {
+						int ping = reader.getInt();
+						Session.PacketWriter writer = ses.write(4);
+						writer.putInt(ping);
+						writer.close();
+					}
+				});
+			}
+
+			@Override
+			public void sessionClosed(Session ses) {
+				opened.decrementAndGet();
+			}
+		});
+		reactor.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		InetSocketAddress addr = (InetSocketAddress) reactor.acceptor.socket().getLocalSocketAddress();
+
+		final SocketChannel[] clients = new SocketChannel[Math.max(idle, active)];
+		int connected = 0;
+		try {
+			for (; connected < clients.length; connected++)
+				clients[connected] = SocketChannel.open(addr);
+		} catch (IOException e) {
+			System.out.println("Stopped at " + connected + " sessions: " + e.getMessage());
+		}
+		while (opened.get() < connected)
+			Thread.sleep(10);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpu = cpuTime(threads);
+		long start = System.nanoTime();
+		Thread.sleep((long) (seconds * 1000));
+		double idleCpu = (cpuTime(threads) - cpu) / (double) (System.nanoTime() - start);
+		System.out.printf("%d idle sessions on %d selectors: %.2f%% CPU%n", connected, reactor.selectors.length, idleCpu * 100);
+
+		final AtomicLong roundTrips = new AtomicLong();
+		Thread[] pingers = new Thread[Math.min(active, connected)];
+		for (int i = 0; i < pingers.length; i++) {
+			final SocketChannel client = clients[i];
+			pingers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer buf = ByteBuffer.allocate(6);
+					long end = System.nanoTime() + (long) (seconds * 1e9);
+					try {
+						for (int ping = 0; System.nanoTime() < end; ping++) {
+							buf.clear();
+							buf.putShort((short) 4).putInt(ping).flip();
+							while (buf.hasRemaining())
+								client.write(buf);
+							buf.clear();
+							while (buf.hasRemaining())
+								if (client.read(buf) == -1)
+									return;
+							if (buf.getInt(2) != ping)
+								throw new IllegalStateException("Echoed " + buf.getInt(2) + " for " + ping);
+							roundTrips.incrementAndGet();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		start = System.nanoTime();
+		for (Thread t : pingers)
+			t.start();
+		for (Thread t : pingers)
+			t.join();
+		System.out.printf("%d active clients: %.0f round trips/s%n", pingers.length, roundTrips.get() / ((System.nanoTime() - start) / 1e9));
+
+		for (int i = 0; i < connected; i++)
+			clients[i].close();
+		reactor.close();
+	}
+}